@@ -7,6 +7,17 @@ signal connection_established()
 signal connection_lost()
 
 @export var PORT : int = 9080
+## Accept the binary codec if the mind proposes it (see BinaryCodec.java)
+@export var binary_codec : bool = true
+## Collect the messages of a physics frame and send them as a single batch
+@export var batch_messages : bool = true
+## Stamp every message with the time it was sent, so the mind can drop stale ones
+@export var send_timestamps : bool = true
+## Share a single connection with the other managers in routing mode (see BodyHub.java):
+## the first one listens on its PORT and routes the commands by their sender
+@export var routing : bool = false
+## The agent of this body when routing; the lowercase name of the parent node if empty
+@export var agent_name : String = ""
 
 var tcp_server := TCPServer.new()
 var ws := WebSocketPeer.new()
@@ -14,12 +25,89 @@ var ws := WebSocketPeer.new()
 # Track if we were open last frame to detect changes
 var _was_open_last_frame : bool = false
 
+# In routing mode: the manager serving the shared connection and the managers by agent name
+static var _hub : VesnaManager = null
+static var _routes : Dictionary = {}
+var _agent : String = ""
+
+# Messages sent during the current physics frame, flushed at its end
+var _outbox : Array = []
+
+# The mind sends the propensions once per connection and then only when they change
+var _propensions : Array = []
+
+# The commands that move the guard: each one replaces the previous
+const LOCOMOTION_TYPES := ["walk", "move_to", "chase", "patrol", "investigate"]
+# Id of the running command of each kind ("locomotion" or the command type), echoed back as "aid" when it completes
+var _action_ids : Dictionary = {}
+
+# --- Binary codec ---
+# Codes must be kept in sync with mind/src/agt/vesna/BinaryCodec.java
+const BINARY_PROTOCOL := "vesna.bin.1"
+const TAG_STR := 0
+const TAG_INT := 1
+const TAG_F32 := 2
+const TAG_STRS := 3
+const TAG_FRAMES := 4
+const TYPE_CODES := {
+	"signal": 1, "sight": 2, "allies": 3, "navigation": 4, "event": 5, "batch": 6,
+	"walk": 16, "rotate": 17, "jump": 18, "chase": 19, "move_to": 20,
+	"patrol": 21, "investigate": 22, "alert": 23
+}
+const KEY_CODES := {
+	"type": 1, "status": 2, "reason": 3, "sight": 4, "id": 5, "pos_x": 6, "pos_y": 7,
+	"allies": 8, "waypoint": 9, "event": 10, "target": 11, "direction": 12, "length": 13,
+	"patience": 14, "points": 15, "action": 16, "propensions": 17,
+	"messages": 18, "ts": 19, "aid": 20
+}
+# Fields that belong to the envelope rather than to the data
+const ENVELOPE_KEYS := ["propensions", "ts", "aid"]
+var _type_names : Dictionary = {}
+var _key_names : Dictionary = {}
+# True if the mind negotiated the binary codec for the current connection
+var _binary : bool = false
+
 func _ready() -> void:
+	for type_name in TYPE_CODES:
+		_type_names[TYPE_CODES[type_name]] = type_name
+	for key_name in KEY_CODES:
+		_key_names[KEY_CODES[key_name]] = key_name
+	if binary_codec:
+		ws.supported_protocols = PackedStringArray([BINARY_PROTOCOL])
+	# Flush after the guard has run its physics frame
+	process_physics_priority = 100
+
+	if routing:
+		_agent = agent_name if agent_name != "" else str(get_parent().name).to_lower()
+		_routes[_agent] = self
+		if _hub != null:
+			# The hub serves this body too
+			set_process(false)
+			return
+		_hub = self
+	_listen()
+
+func _listen() -> void:
 	if tcp_server.listen(PORT) != OK:
 		Warnings.print_warning("Unable to start server on port " + str(PORT), "NetworkManager")
 		set_process(false)
 	else:
-		Messages.print_message("Listening on port " + str(PORT), "NetworkManager")
+		set_process(true)
+		Messages.print_message("Listening on port " + str(PORT) + (" for %d bodies" % _routes.size() if routing else ""), "NetworkManager")
+
+func _exit_tree() -> void:
+	if not routing:
+		ws.close()
+		tcp_server.stop()
+		return
+	_routes.erase(_agent)
+	if _hub == self:
+		tcp_server.stop()
+		ws.close()
+		# Another body takes over the shared connection; the mind reconnects to it
+		_hub = null if _routes.is_empty() else _routes.values()[0]
+		if _hub != null:
+			_hub._listen()
 
 func _process(delta: float) -> void:
 	# 1. Accept new TCP connections
@@ -39,32 +127,119 @@ func _process(delta: float) -> void:
 	if state == WebSocketPeer.STATE_OPEN:
 		if not _was_open_last_frame:
 			_was_open_last_frame = true
-			connection_established.emit()
-			Messages.print_message("WebSocket Handshake complete. Channel OPEN.", "NetworkManager")
+			_binary = ws.get_selected_protocol() == BINARY_PROTOCOL
+			for manager in _managers():
+				manager._propensions = []
+				manager._action_ids.clear()
+				manager.connection_established.emit()
+			Messages.print_message("WebSocket Handshake complete. Channel OPEN%s." % (" (binary)" if _binary else ""), "NetworkManager")
 			
 		# 4. Read incoming packets (Only when OPEN)
 		while ws.get_available_packet_count():
-			var msg : String = ws.get_packet().get_string_from_ascii()
+			var packet : PackedByteArray = ws.get_packet()
 			
-			var intention = JSON.parse_string(msg)
+			var intention
+			if ws.was_string_packet():
+				intention = JSON.parse_string(packet.get_string_from_ascii())
+			else:
+				intention = _decode_frame(packet)
 			if intention:
 				Messages.print_json(intention, "Received Raw Message")
-				command_received.emit(intention)
+				var target : VesnaManager = _routes.get(intention.get("sender", ""), null) if routing else self
+				if target:
+					target._handle_command(intention)
+				else:
+					Warnings.print_warning("No body for agent " + str(intention.get("sender", "")), "NetworkManager")
 			else:
-				Warnings.print_warning("Failed to parse JSON message", "NetworkManager")
+				Warnings.print_warning("Failed to parse message", "NetworkManager")
 				
 	elif state == WebSocketPeer.STATE_CLOSED:
 		if _was_open_last_frame:
 			_was_open_last_frame = false
-			connection_lost.emit()
+			for manager in _managers():
+				manager.connection_lost.emit()
 			Warnings.print_warning("Connection lost or closed.", "NetworkManager")
 
+func _physics_process(_delta: float) -> void:
+	if _outbox.is_empty():
+		return
+	var messages := _outbox
+	_outbox = []
+	if not routing:
+		send_batch(messages)
+		return
+	# A batch goes to a single agent
+	var by_receiver := {}
+	for msg in messages:
+		if not by_receiver.has(msg["receiver"]):
+			by_receiver[msg["receiver"]] = []
+		by_receiver[msg["receiver"]].append(msg)
+	for receiver in by_receiver:
+		send_batch(by_receiver[receiver], receiver)
+
 # --- Helpers ---
 
+## The managers served by this connection
+func _managers() -> Array:
+	return _routes.values() if routing else [self]
+
+func _handle_command(intention: Dictionary) -> void:
+	# Commands without propensions keep the last ones sent
+	if intention.has("propensions"):
+		_propensions = intention["propensions"]
+	else:
+		intention["propensions"] = _propensions
+	if intention.has("aid"):
+		_action_ids[_action_kind(intention.get("type", ""))] = int(intention["aid"])
+	command_received.emit(intention)
+
+func _action_kind(command_type: String) -> String:
+	return "locomotion" if command_type in LOCOMOTION_TYPES else command_type
+
+## Stamps a completion with the id of the command it completes, if the mind sent one
+func _echo_action_id(data: Dictionary, kind: String) -> void:
+	if _action_ids.has(kind):
+		data["aid"] = _action_ids[kind]
+		_action_ids.erase(kind)
+
 func send_data(data: Dictionary) -> void:
+	if send_timestamps:
+		# Milliseconds since the epoch, the same clock as System.currentTimeMillis() in the mind
+		data["ts"] = int(Time.get_unix_time_from_system() * 1000.0)
+	var target : VesnaManager = self
+	if routing:
+		# The hub sends it, addressed to the agent of this body
+		data["receiver"] = _agent
+		target = _hub
+	if target.batch_messages:
+		target._outbox.append(data)
+	else:
+		target._send_now(data)
+
+## Sends several messages in a single frame; the mind queues them together
+func send_batch(messages: Array, receiver: String = "vesna") -> void:
+	if messages.size() == 1:
+		_send_now(messages[0])
+		return
+	var data = {
+		"sender": "body",
+		"receiver": receiver,
+		"type": "batch",
+		"data": {
+			"messages": messages
+		}
+	}
+	_send_now(data)
+
+func _send_now(data: Dictionary) -> void:
 	if ws.get_ready_state() == WebSocketPeer.STATE_OPEN:
-		var json_str = JSON.stringify(data)
-		ws.send_text(json_str)
+		# Types or values the codec does not know still go as JSON
+		var frame : PackedByteArray = _encode_frame(data) if _binary else PackedByteArray()
+		if not frame.is_empty():
+			ws.send(frame)
+		else:
+			var json_str = JSON.stringify(data)
+			ws.send_text(json_str)
 		Messages.print_json(data, "Sent Data")
 	else:
 		Warnings.print_warning("Cannot send data: WebSocket not open", "NetworkManager")
@@ -80,6 +255,8 @@ func send_signal(signal_type: String, status: String, reason: String) -> void:
 			"reason": reason
 		}
 	}
+	# "movement" completes the locomotion commands, the others the command with their name
+	_echo_action_id(data, "locomotion" if signal_type == "movement" else signal_type)
 	send_data(data)
 
 func send_sight(object_name: String, object_id: int) -> void:
@@ -129,6 +306,7 @@ func send_navigation_update(status: String, waypoint_name: String):
 			"waypoint": waypoint_name
 		}
 	}
+	_echo_action_id(data, "locomotion")
 	send_data(data)
 
 func send_target_lost(position: Vector2, reason: String) -> void:
@@ -167,9 +345,124 @@ func send_event(event_type: String, event_data: Dictionary) -> void:
 	data["data"]["type"] = event_type
 	send_data(data)
 
+# --- Binary codec helpers ---
+
+## Encodes a message as a binary frame; returns an empty array if it cannot be represented
+func _encode_frame(msg: Dictionary) -> PackedByteArray:
+	if not TYPE_CODES.has(msg.get("type", "")):
+		return PackedByteArray()
+	var out := StreamPeerBuffer.new()
+	out.put_u8(TYPE_CODES[msg["type"]])
+	_put_string(out, str(msg.get("sender", "")))
+	_put_string(out, str(msg.get("receiver", "")))
+	var data : Dictionary = msg.get("data", {})
+	var fields : Dictionary = data.duplicate()
+	for key in ENVELOPE_KEYS:
+		if msg.has(key):
+			fields[key] = msg[key]
+	_put_varint(out, fields.size())
+	for key in fields:
+		if not KEY_CODES.has(key):
+			return PackedByteArray()
+		out.put_u8(KEY_CODES[key])
+		var value = fields[key]
+		match typeof(value):
+			TYPE_STRING, TYPE_STRING_NAME:
+				out.put_u8(TAG_STR)
+				_put_string(out, str(value))
+			TYPE_INT:
+				out.put_u8(TAG_INT)
+				_put_varint(out, (value << 1) ^ (value >> 63))
+			TYPE_FLOAT:
+				out.put_u8(TAG_F32)
+				out.put_float(value)
+			TYPE_ARRAY when not value.is_empty() and value[0] is Dictionary:
+				out.put_u8(TAG_FRAMES)
+				_put_varint(out, value.size())
+				for item in value:
+					var nested := _encode_frame(item)
+					if nested.is_empty():
+						return PackedByteArray()
+					_put_varint(out, nested.size())
+					out.put_data(nested)
+			TYPE_ARRAY, TYPE_PACKED_STRING_ARRAY:
+				out.put_u8(TAG_STRS)
+				_put_varint(out, value.size())
+				for item in value:
+					_put_string(out, str(item))
+			_:
+				return PackedByteArray()
+	return out.data_array
+
+## Decodes a binary frame into the same Dictionary JSON.parse_string would give
+func _decode_frame(packet: PackedByteArray) -> Variant:
+	var buf := StreamPeerBuffer.new()
+	buf.data_array = packet
+	var code := buf.get_u8()
+	if not _type_names.has(code):
+		return null
+	var msg := {
+		"type": _type_names[code],
+		"sender": _get_string(buf),
+		"receiver": _get_string(buf)
+	}
+	var data := {}
+	var count := _get_varint(buf)
+	for i in count:
+		var key_code := buf.get_u8()
+		var tag := buf.get_u8()
+		var value
+		match tag:
+			TAG_STR:
+				value = _get_string(buf)
+			TAG_INT:
+				var z := _get_varint(buf)
+				value = ((z >> 1) & 0x7FFFFFFFFFFFFFFF) ^ -(z & 1)
+			TAG_F32:
+				value = buf.get_float()
+			TAG_STRS:
+				value = []
+				for j in _get_varint(buf):
+					value.append(_get_string(buf))
+			TAG_FRAMES:
+				value = []
+				for j in _get_varint(buf):
+					value.append(_decode_frame(buf.get_data(_get_varint(buf))[1]))
+			_:
+				return null
+		var key : String = _key_names.get(key_code, "key_%d" % key_code)
+		if key in ENVELOPE_KEYS:
+			msg[key] = value
+		else:
+			data[key] = value
+	msg["data"] = data
+	return msg
+
+func _put_varint(out: StreamPeerBuffer, value: int) -> void:
+	while (value & ~0x7F) != 0:
+		out.put_u8((value & 0x7F) | 0x80)
+		# Logical shift: negative values are large unsigned numbers here
+		value = (value >> 7) & 0x01FFFFFFFFFFFFFF
+	out.put_u8(value)
+
+func _get_varint(buf: StreamPeerBuffer) -> int:
+	var value := 0
+	var shift := 0
+	while true:
+		var b := buf.get_u8()
+		value |= (b & 0x7F) << shift
+		if (b & 0x80) == 0:
+			break
+		shift += 7
+	return value
+
+func _put_string(out: StreamPeerBuffer, text: String) -> void:
+	var bytes := text.to_utf8_buffer()
+	_put_varint(out, bytes.size())
+	out.put_data(bytes)
+
+func _get_string(buf: StreamPeerBuffer) -> String:
+	return buf.get_utf8_string(_get_varint(buf))
+
 func is_mind_connected() -> bool:
 	return ws.get_ready_state() == WebSocketPeer.STATE_OPEN
-
-func _exit_tree() -> void:
-	ws.close()
-	tcp_server.stop()
@@ -0,0 +1,391 @@
+package vesna;
+
+import jason.asSyntax.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * 	Encoder of the actions sent to the body, reused by an agent for all its actions.
+ * </p>
+ * <p>
+ * 	An action is started with {@link VesnaAgent#action(String)}, filled with its data fields and sent with
+ * 	{@link VesnaAgent#perform(ActionEncoder)}:
+ * <pre>
+ * ag.perform( ag.action( "walk" ).field( "type", "goto" ).field( "target", target ).withPropensions() );
+ * </pre>
+ * 	Every action gets the same envelope:
+ * <pre>
+ * { "sender": AGENT, "receiver": "body", "type": TYPE, "data": { ... }, "aid": ID, "propensions": [ ... ] }
+ * </pre>
+ * 	where {@code aid} is the id the body echoes when the action completes (see {@link ActionRegistry}),
+ * 	with {@code propensions} only for the actions that carry them, and only when the body has not received them yet
+ * 	in the current session or they changed (see {@link VesnaAgent#perform(ActionEncoder)} and {@link ActionOutbox}).
+ * 	The fields are kept in preallocated arrays and written straight into a reusable buffer,
+ * 	as JSON text or as a {@link BinaryCodec} frame, so encoding an action does not produce garbage.
+ * </p>
+ * <p>
+ * 	It is not thread-safe: it belongs to the reasoning cycle of its agent.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class ActionEncoder {
+
+	/** Maximum number of data fields of an action */
+	private static final int MAX_FIELDS = 16;
+
+	/** The agent that sends the actions */
+	private final String sender;
+
+	/** The action being built */
+	private String type;
+	private int count;
+	private final String[] keys = new String[ MAX_FIELDS ];
+	private final String[] strs = new String[ MAX_FIELDS ];
+	private final double[] nums = new double[ MAX_FIELDS ];
+	private String key;
+	private boolean replaceable;
+	private long id;
+	private boolean carriesPropensions;
+	private ListTerm propensions;
+	private boolean hasPropensions;
+
+	/** The encoded action, reused for all the actions */
+	private final StringBuilder text = new StringBuilder( 256 );
+	private byte[] bytes = new byte[ 256 ];
+	private int size;
+	private ByteBuffer view = ByteBuffer.wrap( bytes );
+
+	public ActionEncoder( String sender ) {
+		this.sender = sender;
+	}
+
+	/****************************************/
+	/* BUILDING                             */
+	/****************************************/
+
+	/** Starts a new action, discarding the previous one
+	 * @param type The action type, e.g. {@code walk}
+	 * @return This encoder
+	 */
+	public ActionEncoder begin( String type ) {
+		this.type = type;
+		count = 0;
+		key = null;
+		replaceable = false;
+		id = 0;
+		carriesPropensions = false;
+		propensions = null;
+		hasPropensions = false;
+		return this;
+	}
+
+	/** Adds a string field to the data of the action */
+	public ActionEncoder field( String key, String value ) {
+		int i = next( key );
+		strs[ i ] = value;
+		return this;
+	}
+
+	/** Adds a number field to the data of the action */
+	public ActionEncoder field( String key, double value ) {
+		int i = next( key );
+		strs[ i ] = null;
+		nums[ i ] = value;
+		return this;
+	}
+
+	/** Tags the action with a coalescing key: a newer action with the same key may replace it before it is sent
+	 * (see {@link ActionOutbox})
+	 * @param key The key, e.g. {@link ActionOutbox#LOCOMOTION}
+	 */
+	public ActionEncoder coalesce( String key ) {
+		this.key = key;
+		replaceable = true;
+		return this;
+	}
+
+	/** Tags the action with the key of the actions it keeps its order with, without letting a newer one replace it:
+	 * for the relative commands, e.g. a step, where two of them are not the same as the newest one
+	 * @param key The key, e.g. {@link ActionOutbox#LOCOMOTION}
+	 */
+	public ActionEncoder ordered( String key ) {
+		this.key = key;
+		replaceable = false;
+		return this;
+	}
+
+	/** @return The coalescing key of the action, null if it has none */
+	public String getKey() {
+		return key;
+	}
+
+	/** @return true if a newer action with the same key may replace this one */
+	public boolean isReplaceable() {
+		return replaceable;
+	}
+
+	/** Sets the id of the action, echoed by the body when it completes
+	 * @param id The id given by the {@link ActionRegistry}
+	 */
+	ActionEncoder id( long id ) {
+		this.id = id;
+		return this;
+	}
+
+	/** Marks the action as one that carries the propensions of the agent; the agent adds them when needed */
+	public ActionEncoder withPropensions() {
+		carriesPropensions = true;
+		return this;
+	}
+
+	/** @return true if the action carries the propensions of the agent */
+	public boolean carriesPropensions() {
+		return carriesPropensions;
+	}
+
+	/** Adds the propensions to the envelope
+	 * @param propensions The list of propensions
+	 */
+	ActionEncoder propensions( ListTerm propensions ) {
+		this.propensions = propensions;
+		hasPropensions = true;
+		return this;
+	}
+
+	private int next( String key ) {
+		if ( count == MAX_FIELDS )
+			throw new IllegalStateException( "Too many fields for action " + type );
+		keys[ count ] = key;
+		return count++;
+	}
+
+	/** @return The type of the action being built */
+	public String getType() {
+		return type;
+	}
+
+	/****************************************/
+	/* JSON                                 */
+	/****************************************/
+
+	/** Encodes the action as UTF-8 JSON text
+	 * @return A view of the reusable buffer, valid until the next action
+	 */
+	ByteBuffer encodeJson() {
+		writeJson();
+		size = 0;
+		for ( int i = 0; i < text.length(); i++ ) {
+			char c = text.charAt( i );
+			if ( c < 0x80 ) {
+				ensure( 1 );
+				bytes[ size++ ] = ( byte ) c;
+			} else if ( c < 0x800 ) {
+				ensure( 2 );
+				bytes[ size++ ] = ( byte ) ( 0xC0 | ( c >> 6 ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+			} else if ( Character.isHighSurrogate( c ) && i + 1 < text.length() ) {
+				int cp = Character.toCodePoint( c, text.charAt( ++i ) );
+				ensure( 4 );
+				bytes[ size++ ] = ( byte ) ( 0xF0 | ( cp >> 18 ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( cp & 0x3F ) );
+			} else {
+				ensure( 3 );
+				bytes[ size++ ] = ( byte ) ( 0xE0 | ( c >> 12 ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+			}
+		}
+		return view();
+	}
+
+	private void writeJson() {
+		StringBuilder sb = text;
+		sb.setLength( 0 );
+		sb.append( "{\"sender\":" );
+		quote( sb, sender );
+		sb.append( ",\"receiver\":\"body\",\"type\":" );
+		quote( sb, type );
+		sb.append( ",\"data\":{" );
+		for ( int i = 0; i < count; i++ ) {
+			if ( i > 0 )
+				sb.append( ',' );
+			quote( sb, keys[ i ] );
+			sb.append( ':' );
+			if ( strs[ i ] != null )
+				quote( sb, strs[ i ] );
+			else if ( nums[ i ] == Math.rint( nums[ i ] ) && Math.abs( nums[ i ] ) < 0x1p53 )
+				sb.append( ( long ) nums[ i ] );
+			else
+				sb.append( nums[ i ] );
+		}
+		sb.append( '}' );
+		if ( id != 0 )
+			sb.append( ",\"aid\":" ).append( id );
+		if ( hasPropensions ) {
+			sb.append( ",\"propensions\":[" );
+			boolean first = true;
+			for ( Term prop : propensions ) {
+				if ( !first )
+					sb.append( ',' );
+				quote( sb, prop.toString() );
+				first = false;
+			}
+			sb.append( ']' );
+		}
+		sb.append( '}' );
+	}
+
+	private static void quote( StringBuilder sb, String s ) {
+		sb.append( '"' );
+		for ( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			switch ( c ) {
+				case '"': sb.append( "\\\"" ); break;
+				case '\\': sb.append( "\\\\" ); break;
+				case '\n': sb.append( "\\n" ); break;
+				case '\r': sb.append( "\\r" ); break;
+				case '\t': sb.append( "\\t" ); break;
+				default:
+					if ( c < 0x20 )
+						sb.append( "\\u00" ).append( Character.forDigit( c >> 4, 16 ) ).append( Character.forDigit( c & 0xF, 16 ) );
+					else
+						sb.append( c );
+			}
+		}
+		sb.append( '"' );
+	}
+
+	/****************************************/
+	/* BINARY                               */
+	/****************************************/
+
+	/** Encodes the action as a {@link BinaryCodec} frame
+	 * @return A view of the reusable buffer valid until the next action, or {@code null} if a key has no code
+	 */
+	ByteBuffer encodeBinary() {
+		int typeCode = BinaryCodec.typeCode( type );
+		if ( typeCode < 0 )
+			return null;
+		size = 0;
+		u8( typeCode );
+		string( sender );
+		string( "body" );
+		varint( count + ( id != 0 ? 1 : 0 ) + ( hasPropensions ? 1 : 0 ) );
+		for ( int i = 0; i < count; i++ ) {
+			int key = BinaryCodec.keyCode( keys[ i ] );
+			if ( key < 0 )
+				return null;
+			u8( key );
+			if ( strs[ i ] != null ) {
+				u8( BinaryCodec.STR );
+				string( strs[ i ] );
+			} else if ( nums[ i ] == Math.rint( nums[ i ] ) && Math.abs( nums[ i ] ) < 0x1p53 ) {
+				u8( BinaryCodec.INT );
+				long v = ( long ) nums[ i ];
+				varint( ( v << 1 ) ^ ( v >> 63 ) );
+			} else {
+				u8( BinaryCodec.F32 );
+				int bits = Float.floatToIntBits( ( float ) nums[ i ] );
+				ensure( 4 );
+				bytes[ size++ ] = ( byte ) bits;
+				bytes[ size++ ] = ( byte ) ( bits >> 8 );
+				bytes[ size++ ] = ( byte ) ( bits >> 16 );
+				bytes[ size++ ] = ( byte ) ( bits >> 24 );
+			}
+		}
+		if ( id != 0 ) {
+			u8( BinaryCodec.keyCode( "aid" ) );
+			u8( BinaryCodec.INT );
+			varint( id << 1 );
+		}
+		if ( hasPropensions ) {
+			u8( BinaryCodec.keyCode( "propensions" ) );
+			u8( BinaryCodec.STRS );
+			varint( propensions.size() );
+			for ( Term prop : propensions )
+				string( prop.toString() );
+		}
+		return view();
+	}
+
+	private void u8( int b ) {
+		ensure( 1 );
+		bytes[ size++ ] = ( byte ) b;
+	}
+
+	private void varint( long v ) {
+		ensure( 10 );
+		while ( ( v & ~0x7FL ) != 0 ) {
+			bytes[ size++ ] = ( byte ) ( ( v & 0x7F ) | 0x80 );
+			v >>>= 7;
+		}
+		bytes[ size++ ] = ( byte ) v;
+	}
+
+	/** Writes a length-prefixed UTF-8 string without allocating it */
+	private void string( String s ) {
+		int len = 0;
+		for ( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			if ( c < 0x80 )
+				len += 1;
+			else if ( c < 0x800 )
+				len += 2;
+			else if ( Character.isHighSurrogate( c ) && i + 1 < s.length() ) {
+				len += 4;
+				i++;
+			} else
+				len += 3;
+		}
+		varint( len );
+		ensure( len );
+		for ( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt( i );
+			if ( c < 0x80 )
+				bytes[ size++ ] = ( byte ) c;
+			else if ( c < 0x800 ) {
+				bytes[ size++ ] = ( byte ) ( 0xC0 | ( c >> 6 ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+			} else if ( Character.isHighSurrogate( c ) && i + 1 < s.length() ) {
+				int cp = Character.toCodePoint( c, s.charAt( ++i ) );
+				bytes[ size++ ] = ( byte ) ( 0xF0 | ( cp >> 18 ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( cp & 0x3F ) );
+			} else {
+				bytes[ size++ ] = ( byte ) ( 0xE0 | ( c >> 12 ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+				bytes[ size++ ] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+			}
+		}
+	}
+
+	/****************************************/
+	/* BUFFER                               */
+	/****************************************/
+
+	private void ensure( int more ) {
+		if ( size + more > bytes.length ) {
+			bytes = Arrays.copyOf( bytes, Math.max( bytes.length * 2, size + more ) );
+			view = ByteBuffer.wrap( bytes );
+		}
+	}
+
+	private ByteBuffer view() {
+		view.clear();
+		view.limit( size );
+		return view;
+	}
+
+	/** @return The action as JSON text, for logs and traces */
+	@Override
+	public String toString() {
+		writeJson();
+		return text.toString();
+	}
+
+}
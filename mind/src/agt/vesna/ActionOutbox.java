@@ -0,0 +1,289 @@
+package vesna;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 	Outbound stage of an agent that coalesces the actions superseding each other.
+ * </p>
+ * <p>
+ * 	An action can be tagged with a coalescing key (see {@link ActionEncoder#coalesce(String)}),
+ * 	e.g. {@value #LOCOMOTION} for the actions that move the body and {@value #GAZE} for the ones that turn it.
+ * 	The first action of a key is sent at once; the actions of the same key that follow within the flush window
+ * 	wait for its end, and only the newest of them is sent, so the body always gets the freshest intent
+ * 	without the superseded frames queuing up in front of it. The actions without a key are sent at once.
+ * 	The relative actions of a key (see {@link ActionEncoder#ordered(String)}), e.g. a step, are never replaced:
+ * 	they are sent at once, after the action of their key still waiting, so that the body gets them in order.
+ * 	The window is configured in milliseconds from the .jcm, {@code 0} disables the coalescing:
+ * <pre>
+ * coalesce: 20
+ * </pre>
+ * </p>
+ * <p>
+ * 	While the body is not connected the actions wait in a bounded buffer, where a newer action replaces
+ * 	the buffered one with the same key, unless either is relative, and the oldest ones are dropped when it is full;
+ * 	they are replayed in order by {@link #replay()} once the connection is open again.
+ * </p>
+ * <p>
+ * 	An action can come in two versions, with and without an envelope the body keeps for the whole session,
+ * 	i.e. the propensions of the agent: the outbox sends the version with the envelope until one reaches the body,
+ * 	then the one without as long as the envelope does not change. The choice is made when the action is actually sent,
+ * 	so an envelope replaced, dropped or buffered with its action is sent again with the next one, and
+ * 	after {@link #newSession()} the replayed actions carry it again.
+ * </p>
+ * <p>
+ * 	The pending actions are flushed by a single background thread shared by all the agents.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class ActionOutbox {
+
+	/** Key of the actions that move the body */
+	public static final String LOCOMOTION = "locomotion";
+	/** Key of the actions that turn the body */
+	public static final String GAZE = "gaze";
+	/** Default flush window in milliseconds */
+	public static final long DEFAULT_WINDOW = 20;
+	/** Number of actions kept while the body is not connected */
+	public static final int BUFFER_CAPACITY = 64;
+
+	/** Where the actions are sent */
+	public interface Sink {
+		/** Sends an encoded action; the frame is only valid during the call
+		 * @param frame The encoded action
+		 * @param binary true if it is a {@link BinaryCodec} frame, false if it is JSON text
+		 * @return false if the body is not connected and the action was not sent
+		 */
+		boolean send( ByteBuffer frame, boolean binary );
+	}
+
+	/** The thread flushing the pending actions of all the agents */
+	private static ScheduledExecutorService flusher;
+
+	private final Sink sink;
+	private final long window;
+	/** The state of each coalescing key */
+	private final Map<String, Slot> slots = new HashMap<>();
+	/** Number of actions replaced by a newer one before being sent */
+	private long superseded;
+	/** The actions waiting for the connection, oldest first */
+	private final ArrayDeque<Buffered> buffer = new ArrayDeque<>();
+	/** Number of buffered actions dropped because the buffer was full */
+	private long dropped;
+	/** The envelope the body received in this session, null if none */
+	private Object sentEnvelope;
+
+	/** The newest action of a key waiting for the end of the window */
+	private final class Slot {
+		private final String key;
+		private byte[] bytes = new byte[ 256 ];
+		private int size;
+		/** The action without the envelope, {@code bareSize < 0} if it has none */
+		private byte[] bare = new byte[ 0 ];
+		private int bareSize = -1;
+		private Object envelope;
+		private boolean binary;
+		private boolean pending;
+		/** When the last action of the key was sent, in nanoseconds */
+		private long sentAt;
+		private final Runnable flush = () -> flush( this );
+
+		private Slot( String key ) {
+			this.key = key;
+		}
+	}
+
+	/** An action waiting for the connection */
+	private static final class Buffered {
+		private final String key;
+		private final boolean replaceable;
+		private final byte[] bytes;
+		private final byte[] bare;
+		private final Object envelope;
+		private final boolean binary;
+
+		private Buffered( String key, boolean replaceable, ByteBuffer frame, ByteBuffer bare, Object envelope, boolean binary ) {
+			this.key = key;
+			this.replaceable = replaceable;
+			this.bytes = copy( frame );
+			this.bare = bare != null ? copy( bare ) : null;
+			this.envelope = envelope;
+			this.binary = binary;
+		}
+
+		private static byte[] copy( ByteBuffer frame ) {
+			byte[] bytes = new byte[ frame.remaining() ];
+			frame.duplicate().get( bytes );
+			return bytes;
+		}
+	}
+
+	/**
+	 * @param sink Where the actions are sent
+	 * @param window The flush window in milliseconds, {@code 0} to send every action at once
+	 */
+	public ActionOutbox( Sink sink, long window ) throws IllegalArgumentException {
+		if ( window < 0 )
+			throw new IllegalArgumentException( "The coalescing window must not be negative, found: " + window );
+		this.sink = sink;
+		this.window = TimeUnit.MILLISECONDS.toNanos( window );
+	}
+
+	/** Sends an action, or keeps it until the end of the window if an action with the same key was just sent
+	 * @param key The coalescing key of the action, null if it never supersedes another one
+	 * @param frame The encoded action, copied if it has to wait
+	 * @param binary true if it is a {@link BinaryCodec} frame, false if it is JSON text
+	 */
+	public void send( String key, ByteBuffer frame, boolean binary ) {
+		send( key, true, frame, null, null, binary );
+	}
+
+	/** Sends an action that carries an envelope, choosing the version when the action is actually sent
+	 * @param key The coalescing key of the action, null if it never supersedes another one
+	 * @param replaceable false if the action must not be replaced by a newer one with the same key
+	 * @param frame The encoded action with the envelope, copied if it has to wait
+	 * @param bare The same action without the envelope, null if it must always carry it
+	 * @param envelope The envelope carried by the frame, e.g. the propensions, null if none
+	 * @param binary true if they are {@link BinaryCodec} frames, false if they are JSON text
+	 */
+	public synchronized void send( String key, boolean replaceable, ByteBuffer frame, ByteBuffer bare, Object envelope, boolean binary ) {
+		if ( key == null || window == 0 ) {
+			deliver( key, replaceable, frame, bare, envelope, binary );
+			return;
+		}
+		Slot slot = slots.get( key );
+		if ( slot == null ) {
+			slot = new Slot( key );
+			slot.sentAt = System.nanoTime() - window;
+			slots.put( key, slot );
+		}
+		long now = System.nanoTime();
+		if ( !replaceable ) {
+			if ( slot.pending )
+				flush( slot );
+			slot.sentAt = now;
+			deliver( key, replaceable, frame, bare, envelope, binary );
+			return;
+		}
+		if ( !slot.pending && now - slot.sentAt >= window ) {
+			slot.sentAt = now;
+			deliver( key, replaceable, frame, bare, envelope, binary );
+			return;
+		}
+		if ( slot.pending )
+			superseded++;
+		int size = frame.remaining();
+		if ( size > slot.bytes.length )
+			slot.bytes = Arrays.copyOf( slot.bytes, Math.max( slot.bytes.length * 2, size ) );
+		frame.duplicate().get( slot.bytes, 0, size );
+		slot.size = size;
+		slot.bareSize = -1;
+		if ( bare != null ) {
+			slot.bareSize = bare.remaining();
+			if ( slot.bareSize > slot.bare.length )
+				slot.bare = Arrays.copyOf( slot.bare, Math.max( slot.bare.length * 2, slot.bareSize ) );
+			bare.duplicate().get( slot.bare, 0, slot.bareSize );
+		}
+		slot.envelope = envelope;
+		slot.binary = binary;
+		if ( !slot.pending ) {
+			slot.pending = true;
+			flusher().schedule( slot.flush, slot.sentAt + window - now, TimeUnit.NANOSECONDS );
+		}
+	}
+
+	private synchronized void flush( Slot slot ) {
+		if ( !slot.pending )
+			return;
+		slot.pending = false;
+		slot.sentAt = System.nanoTime();
+		ByteBuffer bare = slot.bareSize < 0 ? null : ByteBuffer.wrap( slot.bare, 0, slot.bareSize );
+		deliver( slot.key, true, ByteBuffer.wrap( slot.bytes, 0, slot.size ), bare, slot.envelope, slot.binary );
+		slot.envelope = null;
+	}
+
+	/** Sends an action, buffering it if the body is not connected or other actions are still waiting */
+	private void deliver( String key, boolean replaceable, ByteBuffer frame, ByteBuffer bare, Object envelope, boolean binary ) {
+		if ( buffer.isEmpty() && write( frame, bare, envelope, binary ) )
+			return;
+		if ( key != null && replaceable && buffer.removeIf( b -> b.replaceable && key.equals( b.key ) ) )
+			superseded++;
+		if ( buffer.size() == BUFFER_CAPACITY ) {
+			buffer.poll();
+			dropped++;
+		}
+		buffer.add( new Buffered( key, replaceable, frame, bare, envelope, binary ) );
+	}
+
+	/** Sends the version of the action without the envelope if the body already has it, the one with it otherwise */
+	private boolean write( ByteBuffer frame, ByteBuffer bare, Object envelope, boolean binary ) {
+		boolean known = envelope != null && bare != null && envelope.equals( sentEnvelope );
+		if ( !sink.send( known ? bare : frame, binary ) )
+			return false;
+		if ( envelope != null )
+			sentEnvelope = envelope;
+		return true;
+	}
+
+	/** Forgets the envelope sent to the body, e.g. when a new connection opens and the body starts without it */
+	public synchronized void newSession() {
+		sentEnvelope = null;
+	}
+
+	/** Sends the actions buffered while the body was not connected, in order
+	 * @return The number of actions sent
+	 */
+	public synchronized int replay() {
+		int sent = 0;
+		while ( !buffer.isEmpty() ) {
+			Buffered b = buffer.peek();
+			if ( !write( ByteBuffer.wrap( b.bytes ), b.bare != null ? ByteBuffer.wrap( b.bare ) : null, b.envelope, b.binary ) )
+				break;
+			buffer.poll();
+			sent++;
+		}
+		return sent;
+	}
+
+	/** Drops the pending and buffered actions, e.g. when the agent stops */
+	public synchronized void clear() {
+		for ( Slot slot : slots.values() ) {
+			slot.pending = false;
+			slot.envelope = null;
+		}
+		buffer.clear();
+	}
+
+	/** @return The number of actions waiting for the connection */
+	public synchronized int getBuffered() {
+		return buffer.size();
+	}
+
+	/** @return The number of buffered actions dropped because the buffer was full */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/** @return The number of actions replaced by a newer one before being sent */
+	public synchronized long getSuperseded() {
+		return superseded;
+	}
+
+	private static synchronized ScheduledExecutorService flusher() {
+		if ( flusher == null )
+			flusher = Executors.newSingleThreadScheduledExecutor( r -> {
+				Thread t = new Thread( r, "vesna-outbox" );
+				t.setDaemon( true );
+				return t;
+			} );
+		return flusher;
+	}
+
+}
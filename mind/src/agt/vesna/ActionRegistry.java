@@ -0,0 +1,229 @@
+package vesna;
+
+import jason.JasonException;
+import jason.asSemantics.*;
+import jason.asSyntax.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 	Registry of the actions sent to the body, so that an intention can wait for the completion of its own action.
+ * </p>
+ * <p>
+ * 	Every action performed gets an id, sent in the envelope as {@code aid}; the body echoes it
+ * 	in the message that completes the action (e.g. {@code navigation( reached, W )}).
+ * 	The completion is matched on the WebSocket thread and resumes the intention suspended by {@code vesna.await}
+ * 	directly, without waiting for the belief to go through the reasoning cycle:
+ * <pre>
+ * vesna.walk( Target, _ );
+ * vesna.await( Status, 5000 );   // Status is reached, superseded, timeout, ...
+ * </pre>
+ * 	The status is the first argument of the completing perception; the registry adds:
+ * 	<ul>
+ * 		<li> {@code superseded} when a newer action with the same coalescing key is performed (see {@link ActionOutbox});</li>
+ * 		<li> {@code timeout} when the action did not complete in time;</li>
+ * 		<li> {@code lost} when the action is too old to be still known.</li>
+ * 	</ul>
+ * 	The time between an action and its completion is its round-trip time, collected for the stats.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class ActionRegistry {
+
+	/** Number of actions remembered; the older ones are forgotten */
+	public static final int MAX_ACTIONS = 256;
+
+	private static final Atom SUPERSEDED = new Atom( "superseded" );
+	private static final Atom TIMEOUT = new Atom( "timeout" );
+	private static final Atom LOST = new Atom( "lost" );
+
+	/** The thread firing the timeouts of all the agents */
+	private static ScheduledExecutorService timer;
+
+	private final TransitionSystem ts;
+	private long lastId;
+	/** The known actions by id, oldest first */
+	private final Map<Long, Action> actions = new LinkedHashMap<Long, Action>() {
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Long, Action> eldest ) {
+			return size() > MAX_ACTIONS;
+		}
+	};
+	/** The last action performed by each intention */
+	private final Map<Integer, Long> lastByIntention = new LinkedHashMap<Integer, Long>() {
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Integer, Long> eldest ) {
+			return size() > MAX_ACTIONS;
+		}
+	};
+	/** The last action performed with each coalescing key */
+	private final Map<String, Long> lastByKey = new HashMap<>();
+
+	/** Round-trip times of the completed actions, in nanoseconds */
+	private long completed;
+	private long totalRtt;
+	private long maxRtt;
+
+	/** An action sent to the body */
+	private static final class Action {
+		private final long id;
+		private final long sentAt = System.nanoTime();
+		/** How it completed, null while running */
+		private Term status;
+		/** The intention waiting for it, if any */
+		private Waiter waiter;
+
+		private Action( long id ) {
+			this.id = id;
+		}
+	}
+
+	/** An intention suspended until an action completes */
+	private static final class Waiter {
+		private final Intention intention;
+		/** The key of the intention among the pending ones */
+		private final String key;
+		/** The term unified with the status */
+		private final Term result;
+		private ScheduledFuture<?> timeout;
+
+		private Waiter( Intention intention, String key, Term result ) {
+			this.intention = intention;
+			this.key = key;
+			this.result = result;
+		}
+	}
+
+	public ActionRegistry( TransitionSystem ts ) {
+		this.ts = ts;
+	}
+
+	/** Gives an id to a new action
+	 * @param key The coalescing key of the action, null if it has none; the previous action with the same key is superseded
+	 * @param intention The intention performing it, null if unknown
+	 * @return The id to send with the action
+	 */
+	public synchronized long register( String key, Intention intention ) {
+		long id = ++lastId;
+		actions.put( id, new Action( id ) );
+		if ( intention != null )
+			lastByIntention.put( intention.getId(), id );
+		if ( key != null ) {
+			Long previous = lastByKey.put( key, id );
+			if ( previous != null )
+				complete( actions.get( previous ), SUPERSEDED );
+		}
+		return id;
+	}
+
+	/** Completes an action with a message echoing its id, resuming the intention waiting for it
+	 * @param msg A message from the body with an action id
+	 */
+	public synchronized void complete( BodyMsg msg ) {
+		Action action = actions.get( msg.getActionId() );
+		if ( action == null || action.status != null )
+			return;
+		Literal perception = msg.getPerception();
+		Term status = perception.getArity() > 0 ? perception.getTerm( 0 ) : TermCache.atom( perception.getFunctor() );
+		long rtt = System.nanoTime() - action.sentAt;
+		completed++;
+		totalRtt += rtt;
+		maxRtt = Math.max( maxRtt, rtt );
+		complete( action, status );
+	}
+
+	private void complete( Action action, Term status ) {
+		if ( action == null || action.status != null )
+			return;
+		action.status = status;
+		if ( action.waiter != null )
+			resume( action, status );
+	}
+
+	/** Suspends an intention until the last action it performed completes
+	 * @param intention The intention running {@code vesna.await}
+	 * @param result The term unified with the status of the action
+	 * @param timeout Milliseconds to wait before resuming with {@code timeout}, negative to wait forever
+	 * @throws JasonException If the intention did not perform any action
+	 */
+	public synchronized void await( Intention intention, Term result, long timeout ) throws JasonException {
+		Long id = lastByIntention.get( intention.getId() );
+		if ( id == null )
+			throw new JasonException( "vesna.await: intention " + intention.getId() + " did not perform any action" );
+		Action action = actions.get( id );
+		Waiter waiter = new Waiter( intention, "vesna.await/" + intention.getId() + "/" + id, result );
+		ts.getC().addPendingIntention( waiter.key, intention );
+		if ( action == null ) {
+			action = new Action( id );
+			action.waiter = waiter;
+			resume( action, LOST );
+			return;
+		}
+		action.waiter = waiter;
+		if ( action.status != null ) {
+			resume( action, action.status );
+			return;
+		}
+		if ( timeout >= 0 ) {
+			Action waited = action;
+			waiter.timeout = timer().schedule( () -> expire( waited, waiter ), timeout, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	private synchronized void expire( Action action, Waiter waiter ) {
+		if ( action.waiter == waiter )
+			resume( action, TIMEOUT );
+	}
+
+	/** Resumes the intention waiting for an action at the start of the next reasoning cycle */
+	private void resume( Action action, Term status ) {
+		Waiter waiter = action.waiter;
+		action.waiter = null;
+		if ( waiter.timeout != null )
+			waiter.timeout.cancel( false );
+		ts.runAtBeginOfNextCycle( () -> {
+			Circumstance c = ts.getC();
+			// As .wait: the intention may have been dropped or resumed in the meantime
+			if ( c.removePendingIntention( waiter.key ) != waiter.intention || c.hasRunningIntention( waiter.intention ) || waiter.intention.isFinished() )
+				return;
+			IntendedMeans im = waiter.intention.peek();
+			im.removeCurrentStep();
+			im.getUnif().unifies( waiter.result, status );
+			c.addRunningIntention( waiter.intention );
+		} );
+		ts.getAgArch().wakeUpSense();
+	}
+
+	/** @return The number of actions completed by the body */
+	public synchronized long getCompleted() {
+		return completed;
+	}
+
+	/** @return The mean round-trip time of the completed actions in milliseconds */
+	public synchronized double getMeanRtt() {
+		return completed == 0 ? 0 : totalRtt / 1e6 / completed;
+	}
+
+	/** @return The longest round-trip time of the completed actions in milliseconds */
+	public synchronized double getMaxRtt() {
+		return maxRtt / 1e6;
+	}
+
+	private static synchronized ScheduledExecutorService timer() {
+		if ( timer == null )
+			timer = Executors.newSingleThreadScheduledExecutor( r -> {
+				Thread t = new Thread( r, "vesna-actions" );
+				t.setDaemon( true );
+				return t;
+			} );
+		return timer;
+	}
+
+}
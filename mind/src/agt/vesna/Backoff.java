@@ -0,0 +1,82 @@
+package vesna;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 	Exponential backoff with jitter for the reconnections of a {@link BodyLink}.
+ * </p>
+ * <p>
+ * 	The delay doubles at every failed attempt, from {@value #DEFAULT_MIN_DELAY} ms up to {@value #DEFAULT_MAX_DELAY} ms
+ * 	unless {@link #set(long, long)} says otherwise, and half of it is random,
+ * 	so that a squad does not hammer a body that is restarting all at the same time.
+ * 	The attempts are scheduled by a single background thread shared by all the agents.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class Backoff {
+
+	/** Default delay before the first reconnection attempt, in milliseconds */
+	public static final long DEFAULT_MIN_DELAY = 100;
+	/** Default maximum delay between two reconnection attempts, in milliseconds */
+	public static final long DEFAULT_MAX_DELAY = 5000;
+
+	/** The thread scheduling the reconnections of all the agents */
+	private static ScheduledExecutorService scheduler;
+
+	private long minDelay = DEFAULT_MIN_DELAY;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+	/** Failed attempts since the last open connection */
+	private int attempts;
+
+	/** Sets the delays
+	 * @param minDelay The delay before the first attempt, in milliseconds
+	 * @param maxDelay The maximum delay between two attempts, in milliseconds
+	 */
+	public synchronized void set( long minDelay, long maxDelay ) throws IllegalArgumentException {
+		if ( minDelay <= 0 || maxDelay < minDelay )
+			throw new IllegalArgumentException( "The reconnection delays should be 0 < min <= max, found: " + minDelay + ", " + maxDelay );
+		this.minDelay = minDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/** @return The delay before the next attempt, in milliseconds */
+	public synchronized long next() {
+		long delay = Math.min( maxDelay, minDelay << Math.min( attempts, 20 ) );
+		attempts++;
+		// Half of the delay is random, so that the agents of a squad do not retry together
+		return delay / 2 + ThreadLocalRandom.current().nextLong( delay / 2 + 1 );
+	}
+
+	/** Starts again from the minimum delay, once connected */
+	public synchronized void reset() {
+		attempts = 0;
+	}
+
+	/** @return The failed attempts since the last open connection */
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	/** Runs a reconnection attempt after a delay
+	 * @param attempt The attempt
+	 * @param delay The delay in milliseconds
+	 */
+	public static void schedule( Runnable attempt, long delay ) {
+		scheduler().schedule( attempt, delay, TimeUnit.MILLISECONDS );
+	}
+
+	private static synchronized ScheduledExecutorService scheduler() {
+		if ( scheduler == null )
+			scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+				Thread t = new Thread( r, "vesna-reconnect" );
+				t.setDaemon( true );
+				return t;
+			} );
+		return scheduler;
+	}
+
+}
@@ -0,0 +1,78 @@
+package vesna;
+
+import jason.asSyntax.*;
+import jason.asSyntax.parser.ParseException;
+import jason.NoValueException;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 	Keeps track of the beliefs that live in a <i>slot</i>: for the configured functors only the latest
+ * 	belief for each key is kept, and a new one replaces the previous instead of adding up.
+ * </p>
+ * <p>
+ * 	The key of a belief is its functor with the first {@code K} arguments;
+ * 	it is configured from the .jcm with:
+ * <pre>
+ * slots: slots( sight(2), allies_nearby(0) )
+ * </pre>
+ * 	so that {@code sight( player, Id, pos( X, Y ) )} has one slot for each object and id and {@code allies_nearby( L )} has a single slot.
+ * 	A functor without the number ({@code slots( sight )}) uses all the arguments but the last one as key.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class BeliefSlots {
+
+	/** Number of leading arguments that form the key, for each slotted functor; -1 stands for all but the last */
+	private final Map<String, Integer> keyArity = new HashMap<>();
+	/** The belief currently held by each slot */
+	private final Map<Literal, Literal> slots = new HashMap<>();
+
+	public BeliefSlots( String config ) throws IllegalArgumentException {
+
+		// No slots configured: every belief is added as usual
+		if ( config == null )
+			return;
+
+		try {
+			Literal slotsLit = parseLiteral( config );
+			for ( Term term : slotsLit.getTerms() ) {
+				Literal slot = ( Literal ) term;
+				if ( slot.getArity() == 0 )
+					keyArity.put( slot.getFunctor(), -1 );
+				else
+					keyArity.put( slot.getFunctor(), ( int ) ( ( NumberTerm ) slot.getTerm( 0 ) ).solve() );
+			}
+		} catch ( ParseException pe ) {
+			throw new IllegalArgumentException( pe.getMessage() + " Maybe one of the slots is mispelled" );
+		} catch ( NoValueException | ClassCastException e ) {
+			throw new IllegalArgumentException( "Slots should be written as functor( key_arity ), found: " + config );
+		}
+	}
+
+	/** Checks if a belief should be kept in a slot
+	 * @param belief The belief to check
+	 * @return true if its functor is slotted
+	 */
+	public boolean isSlotted( Literal belief ) {
+		return !keyArity.isEmpty() && keyArity.containsKey( belief.getFunctor() );
+	}
+
+	/** Puts a belief in its slot
+	 * @param belief The new belief
+	 * @return The belief previously held by the same slot, or null if the slot was empty
+	 */
+	public Literal put( Literal belief ) {
+		return slots.put( BodyMsg.keyOf( belief, keyArity.get( belief.getFunctor() ) ), belief );
+	}
+
+	/** @return The number of slots currently in use */
+	public int size() {
+		return slots.size();
+	}
+
+}
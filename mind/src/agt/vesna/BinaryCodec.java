@@ -0,0 +1,568 @@
+package vesna;
+
+import jason.asSyntax.Literal;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * 	Compact binary codec for the mind-body protocol.
+ * </p>
+ * <p>
+ * 	It is negotiated at connect time through the WebSocket sub-protocol {@value #PROTOCOL}:
+ * 	if the body does not accept it, both sides keep talking JSON.
+ * 	Text frames are always accepted, so a body can still send as JSON what the codec cannot represent.
+ * </p>
+ * <p>
+ * 	A frame mirrors the JSON envelope replacing the repeated strings with codes (little endian, as Godot writes it):
+ * <pre>
+ * frame := type:u8 sender:str receiver:str count:varint field*
+ * field := key:u8 tag:u8 value
+ * value := STR   len:varint utf8-bytes
+ *        | INT   zigzag varint
+ *        | F32   4 bytes float
+ *        | STRS  count:varint str*
+ *        | FRAMES count:varint ( len:varint frame )*
+ * </pre>
+ * 	The fields are the ones of the {@code data} object plus the envelope {@code ts}, the action id {@code aid}
+ * 	and the {@code propensions} of the movement actions.
+ * 	A {@code batch} frame carries the frames of a whole physics frame in its {@code messages} field.
+ * 	The codes of types and keys are listed in {@code bodies/guards/vesnaManager.gd} too and must be kept in sync.
+ * </p>
+ * <p>
+ * 	{@link #decode(ByteBuffer, List)} keeps its scratch space in fields: use one instance per receiving thread.
+ * 	{@link #encode(JSONObject)} does not share state and can be called from any thread.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class BinaryCodec {
+
+	/** The WebSocket sub-protocol that selects this codec */
+	public static final String PROTOCOL = "vesna.bin.1";
+
+	/** Value tags */
+	static final int STR = 0;
+	static final int INT = 1;
+	static final int F32 = 2;
+	static final int STRS = 3;
+	static final int FRAMES = 4;
+
+	/** Message types by code: body to mind first, then mind to body */
+	private static final String[] TYPES = new String[ 32 ];
+	/** Field keys by code */
+	private static final String[] KEYS = new String[ 32 ];
+	private static final Map<String, Integer> TYPE_CODES = new HashMap<>();
+	private static final Map<String, Integer> KEY_CODES = new HashMap<>();
+
+	static {
+		type( 1, "signal" );
+		type( 2, "sight" );
+		type( 3, "allies" );
+		type( 4, "navigation" );
+		type( 5, "event" );
+		type( 6, "batch" );
+		type( 16, "walk" );
+		type( 17, "rotate" );
+		type( 18, "jump" );
+		type( 19, "chase" );
+		type( 20, "move_to" );
+		type( 21, "patrol" );
+		type( 22, "investigate" );
+		type( 23, "alert" );
+
+		key( 1, "type" );
+		key( 2, "status" );
+		key( 3, "reason" );
+		key( 4, "sight" );
+		key( 5, "id" );
+		key( 6, "pos_x" );
+		key( 7, "pos_y" );
+		key( 8, "allies" );
+		key( 9, "waypoint" );
+		key( 10, "event" );
+		key( 11, "target" );
+		key( 12, "direction" );
+		key( 13, "length" );
+		key( 14, "patience" );
+		key( 15, "points" );
+		key( 16, "action" );
+		key( 17, "propensions" );
+		key( 18, "messages" );
+		key( 19, "ts" );
+		key( 20, "aid" );
+	}
+
+	/** Type and key codes used by the decoder */
+	private static final int T_BATCH = 6;
+	private static final int K_TYPE = 1, K_STATUS = 2, K_REASON = 3, K_SIGHT = 4, K_ID = 5, K_POS_X = 6, K_POS_Y = 7,
+		K_ALLIES = 8, K_WAYPOINT = 9, K_EVENT = 10, K_MESSAGES = 18, K_TS = 19, K_AID = 20;
+
+	/** The fields that belong to the envelope rather than to the data */
+	private static final List<String> ENVELOPE_KEYS = List.of( "propensions", "ts", "aid" );
+
+	private static void type( int code, String name ) {
+		TYPES[ code ] = name;
+		TYPE_CODES.put( name, code );
+	}
+
+	private static void key( int code, String name ) {
+		KEYS[ code ] = name;
+		KEY_CODES.put( name, code );
+	}
+
+	/** @param name A message type
+	 * @return Its code, or -1 if the codec does not know it
+	 */
+	static int typeCode( String name ) {
+		Integer code = TYPE_CODES.get( name );
+		return code == null ? -1 : code;
+	}
+
+	/** @param name A field key
+	 * @return Its code, or -1 if the codec does not know it
+	 */
+	static int keyCode( String name ) {
+		Integer code = KEY_CODES.get( name );
+		return code == null ? -1 : code;
+	}
+
+	/** Decoder scratch space: the string, number and list value of each key of the current frame */
+	private final String[] strs = new String[ KEYS.length ];
+	private final double[] nums = new double[ KEYS.length ];
+	private final boolean[] present = new boolean[ KEYS.length ];
+	private final List<String> list = new ArrayList<>();
+
+	/****************************************/
+	/* DECODING                             */
+	/****************************************/
+
+	/** Decodes a frame sent by the body, which may be a {@code batch} of frames
+	 * @param frame The binary frame
+	 * @param out The list where the decoded messages are added, in the order they were sent
+	 * @return The number of frames that were malformed or not known body messages
+	 */
+	public int decode( ByteBuffer frame, List<BodyMsg> out ) {
+		ByteBuffer buf = frame.order( ByteOrder.LITTLE_ENDIAN );
+		if ( !buf.hasRemaining() || ( buf.get( buf.position() ) & 0xFF ) != T_BATCH ) {
+			BodyMsg decoded = decode( buf );
+			if ( decoded == null )
+				return 1;
+			out.add( decoded );
+			return 0;
+		}
+		int size = out.size();
+		int rejected = 0;
+		try {
+			buf.get();
+			readString( buf );
+			readString( buf );
+			int count = ( int ) readVarint( buf );
+			for ( int i = 0; i < count; i++ ) {
+				int key = buf.get() & 0xFF;
+				int tag = buf.get() & 0xFF;
+				if ( key != K_MESSAGES || tag != FRAMES ) {
+					skip( buf, tag );
+					continue;
+				}
+				int n = ( int ) readVarint( buf );
+				for ( int j = 0; j < n; j++ ) {
+					ByteBuffer entry = slice( buf );
+					// Batches do not nest
+					BodyMsg decoded = entry.hasRemaining() && ( entry.get( 0 ) & 0xFF ) != T_BATCH ? decode( entry ) : null;
+					if ( decoded == null )
+						rejected++;
+					else
+						out.add( decoded );
+				}
+			}
+			return rejected;
+		} catch ( BufferUnderflowException | IllegalArgumentException e ) {
+			out.subList( size, out.size() ).clear();
+			return rejected + 1;
+		}
+	}
+
+	/** Decodes a single frame sent by the body straight into a perception
+	 * @param frame The binary frame
+	 * @return The decoded message, or {@code null} if the frame is malformed or not a known body message
+	 */
+	private BodyMsg decode( ByteBuffer frame ) {
+		ByteBuffer buf = frame.order( ByteOrder.LITTLE_ENDIAN );
+		Arrays.fill( present, false );
+		list.clear();
+		try {
+			int code = buf.get() & 0xFF;
+			String type = code < TYPES.length ? TYPES[ code ] : null;
+			String sender = readString( buf );
+			String receiver = readString( buf );
+			int count = ( int ) readVarint( buf );
+			for ( int i = 0; i < count; i++ ) {
+				int key = buf.get() & 0xFF;
+				int tag = buf.get() & 0xFF;
+				boolean known = key < KEYS.length;
+				if ( known )
+					present[ key ] = true;
+				switch ( tag ) {
+					case FRAMES:
+						skip( buf, tag );
+						break;
+					case STR:
+						String s = readString( buf );
+						if ( known )
+							strs[ key ] = s;
+						break;
+					case INT:
+						long l = readZigzag( buf );
+						if ( known )
+							nums[ key ] = l;
+						break;
+					case F32:
+						float f = buf.getFloat();
+						if ( known )
+							nums[ key ] = f;
+						break;
+					case STRS:
+						int n = ( int ) readVarint( buf );
+						for ( int j = 0; j < n; j++ ) {
+							String item = readString( buf );
+							if ( key == K_ALLIES )
+								list.add( item );
+						}
+						break;
+					default:
+						return null;
+				}
+			}
+			if ( type == null )
+				return null;
+
+			Literal perception = null;
+			BodyMsg.Kind kind = BodyMsg.Kind.BELIEF;
+			switch ( type ) {
+				case "signal":
+					if ( has( K_TYPE, K_STATUS, K_REASON ) )
+						perception = BodyMsgDecoder.signal( strs[ K_TYPE ], strs[ K_STATUS ], strs[ K_REASON ] );
+					kind = BodyMsg.Kind.SIGNAL;
+					break;
+				case "sight":
+					if ( has( K_SIGHT, K_ID ) )
+						perception = BodyMsgDecoder.sight( strs[ K_SIGHT ], ( long ) nums[ K_ID ], has( K_POS_X, K_POS_Y ), nums[ K_POS_X ], nums[ K_POS_Y ] );
+					break;
+				case "allies":
+					if ( present[ K_ALLIES ] )
+						perception = BodyMsgDecoder.allies( list );
+					break;
+				case "navigation":
+					if ( has( K_STATUS, K_WAYPOINT ) )
+						perception = BodyMsgDecoder.navigation( strs[ K_STATUS ], strs[ K_WAYPOINT ] );
+					break;
+				case "event":
+					if ( has( K_EVENT, K_POS_X, K_POS_Y, K_REASON ) && "target_lost".equals( strs[ K_EVENT ] ) )
+						perception = BodyMsgDecoder.targetLost( nums[ K_POS_X ], nums[ K_POS_Y ], strs[ K_REASON ] );
+					break;
+			}
+			if ( perception == null )
+				return null;
+			return new BodyMsg( type, sender, receiver, perception, kind,
+				present[ K_TS ] ? ( long ) nums[ K_TS ] : 0, present[ K_AID ] ? ( long ) nums[ K_AID ] : 0 );
+		} catch ( BufferUnderflowException | IllegalArgumentException e ) {
+			return null;
+		}
+	}
+
+	/** Decodes any frame into its JSON form; slower than {@link #decode(ByteBuffer)}, meant for tools and logs
+	 * @param frame The binary frame
+	 * @return The message as it would have been sent in JSON
+	 * @throws IllegalArgumentException if the frame is malformed
+	 */
+	public static JSONObject toJson( ByteBuffer frame ) throws IllegalArgumentException {
+		ByteBuffer buf = frame.order( ByteOrder.LITTLE_ENDIAN );
+		try {
+			int code = buf.get() & 0xFF;
+			JSONObject msg = new JSONObject();
+			JSONObject data = new JSONObject();
+			msg.put( "type", code < TYPES.length && TYPES[ code ] != null ? TYPES[ code ] : "unknown_" + code );
+			msg.put( "sender", readString( buf ) );
+			msg.put( "receiver", readString( buf ) );
+			msg.put( "data", data );
+			int count = ( int ) readVarint( buf );
+			for ( int i = 0; i < count; i++ ) {
+				int key = buf.get() & 0xFF;
+				int tag = buf.get() & 0xFF;
+				String name = key < KEYS.length && KEYS[ key ] != null ? KEYS[ key ] : "key_" + key;
+				JSONObject target = ENVELOPE_KEYS.contains( name ) ? msg : data;
+				switch ( tag ) {
+					case STR:
+						target.put( name, readString( buf ) );
+						break;
+					case INT:
+						target.put( name, readZigzag( buf ) );
+						break;
+					case F32:
+						target.put( name, buf.getFloat() );
+						break;
+					case STRS:
+						JSONArray array = new JSONArray();
+						int n = ( int ) readVarint( buf );
+						for ( int j = 0; j < n; j++ )
+							array.put( readString( buf ) );
+						target.put( name, array );
+						break;
+					case FRAMES:
+						JSONArray frames = new JSONArray();
+						int m = ( int ) readVarint( buf );
+						for ( int j = 0; j < m; j++ )
+							frames.put( toJson( slice( buf ) ) );
+						target.put( name, frames );
+						break;
+					default:
+						throw new IllegalArgumentException( "Unknown value tag " + tag );
+				}
+			}
+			return msg;
+		} catch ( BufferUnderflowException e ) {
+			throw new IllegalArgumentException( "Truncated frame" );
+		}
+	}
+
+	private boolean has( int... keys ) {
+		for ( int key : keys )
+			if ( !present[ key ] )
+				return false;
+		return true;
+	}
+
+	/** Skips a value of the given tag */
+	private static void skip( ByteBuffer buf, int tag ) {
+		switch ( tag ) {
+			case STR:
+				readString( buf );
+				break;
+			case INT:
+				readVarint( buf );
+				break;
+			case F32:
+				buf.getFloat();
+				break;
+			case STRS:
+				for ( int n = ( int ) readVarint( buf ); n > 0; n-- )
+					readString( buf );
+				break;
+			case FRAMES:
+				for ( int n = ( int ) readVarint( buf ); n > 0; n-- )
+					slice( buf );
+				break;
+			default:
+				throw new IllegalArgumentException( "Unknown value tag " + tag );
+		}
+	}
+
+	/** Reads a length-prefixed nested frame
+	 * @return A view of the nested frame; the buffer is moved past it
+	 */
+	private static ByteBuffer slice( ByteBuffer buf ) {
+		int len = ( int ) readVarint( buf );
+		if ( len < 0 || len > buf.remaining() )
+			throw new IllegalArgumentException( "Bad frame length" );
+		ByteBuffer nested = buf.slice().limit( len ).order( ByteOrder.LITTLE_ENDIAN );
+		buf.position( buf.position() + len );
+		return nested;
+	}
+
+	private static long readVarint( ByteBuffer buf ) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if ( shift > 63 )
+				throw new IllegalArgumentException( "Varint too long" );
+			b = buf.get();
+			value |= ( long ) ( b & 0x7F ) << shift;
+			shift += 7;
+		} while ( ( b & 0x80 ) != 0 );
+		return value;
+	}
+
+	private static long readZigzag( ByteBuffer buf ) {
+		long z = readVarint( buf );
+		return ( z >>> 1 ) ^ -( z & 1 );
+	}
+
+	/** Reads the receiver of a frame without decoding it, to route it
+	 * @param frame The binary frame, left untouched
+	 * @return The receiver, or {@code null} if the frame is malformed
+	 */
+	public static String receiverOf( ByteBuffer frame ) {
+		ByteBuffer buf = frame.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+		try {
+			buf.get();
+			readString( buf );
+			return readString( buf );
+		} catch ( BufferUnderflowException | IllegalArgumentException e ) {
+			return null;
+		}
+	}
+
+	private static String readString( ByteBuffer buf ) {
+		int len = ( int ) readVarint( buf );
+		if ( len < 0 || len > buf.remaining() )
+			throw new IllegalArgumentException( "Bad string length" );
+		if ( buf.hasArray() ) {
+			String s = new String( buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8 );
+			buf.position( buf.position() + len );
+			return s;
+		}
+		byte[] bytes = new byte[ len ];
+		buf.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/****************************************/
+	/* ENCODING                             */
+	/****************************************/
+
+	/** Encodes a message in its JSON form
+	 * @param msg The message with {@code type}, {@code sender}, {@code receiver}, {@code data} and optionally {@code propensions}
+	 * @return The binary frame, or {@code null} if the message cannot be represented and should be sent as text
+	 */
+	public static ByteBuffer encode( JSONObject msg ) {
+		Integer code = TYPE_CODES.get( msg.optString( "type" ) );
+		if ( code == null )
+			return null;
+		FrameWriter out = new FrameWriter();
+		out.u8( code );
+		out.string( msg.optString( "sender" ) );
+		out.string( msg.optString( "receiver" ) );
+
+		JSONObject data = msg.optJSONObject( "data" );
+		int count = data == null ? 0 : data.length();
+		for ( String name : ENVELOPE_KEYS )
+			if ( msg.has( name ) )
+				count++;
+		out.varint( count );
+		if ( data != null )
+			for ( String name : data.keySet() )
+				if ( !field( out, name, data.get( name ) ) )
+					return null;
+		for ( String name : ENVELOPE_KEYS )
+			if ( msg.has( name ) && !field( out, name, msg.get( name ) ) )
+				return null;
+		return out.toByteBuffer();
+	}
+
+	private static boolean field( FrameWriter out, String name, Object value ) {
+		Integer key = KEY_CODES.get( name );
+		if ( key == null )
+			return false;
+		out.u8( key );
+		if ( value instanceof String ) {
+			out.u8( STR );
+			out.string( ( String ) value );
+		} else if ( value instanceof Integer || value instanceof Long ) {
+			out.u8( INT );
+			out.zigzag( ( ( Number ) value ).longValue() );
+		} else if ( value instanceof Number ) {
+			double d = ( ( Number ) value ).doubleValue();
+			// Whole numbers (ids, counters) keep their precision, the rest become floats
+			if ( d == Math.rint( d ) && Math.abs( d ) < 0x1p53 ) {
+				out.u8( INT );
+				out.zigzag( ( long ) d );
+			} else {
+				out.u8( F32 );
+				out.f32( ( float ) d );
+			}
+		} else if ( value instanceof JSONArray && ( ( JSONArray ) value ).opt( 0 ) instanceof JSONObject ) {
+			JSONArray array = ( JSONArray ) value;
+			out.u8( FRAMES );
+			out.varint( array.length() );
+			for ( int i = 0; i < array.length(); i++ ) {
+				ByteBuffer nested = array.get( i ) instanceof JSONObject ? encode( array.getJSONObject( i ) ) : null;
+				if ( nested == null )
+					return false;
+				out.varint( nested.remaining() );
+				out.bytes( nested );
+			}
+		} else if ( value instanceof JSONArray ) {
+			JSONArray array = ( JSONArray ) value;
+			out.u8( STRS );
+			out.varint( array.length() );
+			for ( int i = 0; i < array.length(); i++ ) {
+				if ( !( array.get( i ) instanceof String ) )
+					return false;
+				out.string( array.getString( i ) );
+			}
+		} else
+			return false;
+		return true;
+	}
+
+	/** Growable little endian byte writer */
+	static final class FrameWriter {
+
+		private byte[] bytes = new byte[ 64 ];
+		private int size;
+
+		private void ensure( int more ) {
+			if ( size + more > bytes.length )
+				bytes = Arrays.copyOf( bytes, Math.max( bytes.length * 2, size + more ) );
+		}
+
+		void u8( int b ) {
+			ensure( 1 );
+			bytes[ size++ ] = ( byte ) b;
+		}
+
+		void varint( long v ) {
+			ensure( 10 );
+			while ( ( v & ~0x7FL ) != 0 ) {
+				bytes[ size++ ] = ( byte ) ( ( v & 0x7F ) | 0x80 );
+				v >>>= 7;
+			}
+			bytes[ size++ ] = ( byte ) v;
+		}
+
+		void zigzag( long v ) {
+			varint( ( v << 1 ) ^ ( v >> 63 ) );
+		}
+
+		void f32( float f ) {
+			int bits = Float.floatToIntBits( f );
+			ensure( 4 );
+			bytes[ size++ ] = ( byte ) bits;
+			bytes[ size++ ] = ( byte ) ( bits >> 8 );
+			bytes[ size++ ] = ( byte ) ( bits >> 16 );
+			bytes[ size++ ] = ( byte ) ( bits >> 24 );
+		}
+
+		void string( String s ) {
+			byte[] utf8 = s.getBytes( StandardCharsets.UTF_8 );
+			varint( utf8.length );
+			ensure( utf8.length );
+			System.arraycopy( utf8, 0, bytes, size, utf8.length );
+			size += utf8.length;
+		}
+
+		void bytes( ByteBuffer b ) {
+			int len = b.remaining();
+			ensure( len );
+			b.duplicate().get( bytes, size, len );
+			size += len;
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap( bytes, 0, size ).slice();
+		}
+	}
+
+}
@@ -0,0 +1,195 @@
+package vesna;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * 	A single connection to a body host shared by all the agents of the JVM that live there.
+ * </p>
+ * <p>
+ * 	Instead of one WebSocket (and one Godot server) for each agent, the agents configured with
+ * <pre>
+ * connection: shared
+ * </pre>
+ * 	attach to the hub of their address and port. The actions already name the agent in {@code sender};
+ * 	the messages of the body name it in {@code receiver}, which the hub reads without decoding the message
+ * 	to hand it to the agent. A message that names no receiver, or the broadcast receiver {@code vesna},
+ * 	goes to all the agents; a message for an agent that is not attached (killed, not attached yet or misspelled)
+ * 	is dropped and logged, so that no agent takes the perceptions of another body as its own.
+ * 	The body has to run in routing mode (see {@code routing} in {@code vesnaManager.gd}).
+ * </p>
+ * <p>
+ * 	The messages are routed on the WebSocket thread of the hub, so every agent still decodes its own messages
+ * 	on a single thread. The hub reconnects like any {@link BodyLink} and closes once the last agent detaches.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class BodyHub implements WsClientMsgHandler {
+
+	/** The receiver of the messages for all the agents, the default of the body */
+	public static final String BROADCAST = "vesna";
+
+	private static final Logger logger = Logger.getLogger( BodyHub.class.getName() );
+
+	/** The open hubs by address and codec */
+	private static final Map<String, BodyHub> hubs = new HashMap<>();
+
+	private final String name;
+	private final BodyLink client;
+	/** The agents attached by name */
+	private final Map<String, WsClientMsgHandler> routes = new ConcurrentHashMap<>();
+	/** True between the opening and the closing of the connection, guarded by the lock of the hubs */
+	private boolean open;
+	/** Used by the WebSocket thread to read the receivers */
+	private final BodyMsgDecoder decoder = new BodyMsgDecoder();
+	/** The messages dropped because their receiver was not attached */
+	private final AtomicLong dropped = new AtomicLong();
+	/** The unknown receivers already logged, forgotten when they attach */
+	private final Set<String> unknown = ConcurrentHashMap.newKeySet();
+
+	private BodyHub( String name, URI address, boolean binary, boolean nio ) {
+		this.name = name;
+		client = BodyLink.create( address, binary, nio );
+		client.setMsgHandler( this );
+	}
+
+	/** Gets the hub of a body host, creating it if no agent is attached yet
+	 * @param address The address of the body, e.g. {@code ws://localhost:9080}
+	 * @param binary true to propose the binary codec to the body
+	 * @param nio true for the transport shared by all the connections (see {@link NioBodyLink})
+	 * @return The hub, to be connected with {@link #attach(String, WsClientMsgHandler)}
+	 */
+	public static synchronized BodyHub get( URI address, boolean binary, boolean nio ) {
+		String name = address + ( binary ? " (binary)" : "" ) + ( nio ? " (nio)" : "" );
+		return hubs.computeIfAbsent( name, n -> new BodyHub( n, address, binary, nio ) );
+	}
+
+	/** Attaches an agent, starting to connect the hub if it is the first one
+	 * <p>
+	 * If the hub is already open the agent is told at once, otherwise when it opens:
+	 * the attachment and the opening are serialized, so the agent is told exactly once.
+	 * </p>
+	 * @param agent The name of the agent, the receiver of its messages
+	 * @param handler The handler of the agent
+	 */
+	public void attach( String agent, WsClientMsgHandler handler ) {
+		boolean opened;
+		synchronized ( BodyHub.class ) {
+			routes.put( agent, handler );
+			unknown.remove( agent );
+			opened = open;
+			if ( routes.size() == 1 && !opened && !client.isOpen() )
+				client.connect();
+		}
+		if ( opened )
+			handler.handleOpen();
+	}
+
+	/** Detaches an agent, closing the hub for good if it was the last one
+	 * @param agent The name of the agent
+	 */
+	public void detach( String agent ) {
+		synchronized ( BodyHub.class ) {
+			routes.remove( agent );
+			if ( !routes.isEmpty() )
+				return;
+			hubs.remove( name );
+		}
+		client.shutdown();
+	}
+
+	/** @return The client shared by the agents, to send their actions */
+	public BodyLink getClient() {
+		return client;
+	}
+
+	/** @return The number of messages dropped because their receiver was not attached */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/****************************************/
+	/* ROUTING                              */
+	/****************************************/
+
+	@Override
+	public void handleOpen() {
+		for ( WsClientMsgHandler handler : setOpen( true ) )
+			handler.handleOpen();
+	}
+
+	@Override
+	public void handleClose( int code, String reason, boolean remote ) {
+		for ( WsClientMsgHandler handler : setOpen( false ) )
+			handler.handleClose( code, reason, remote );
+	}
+
+	/** Changes the state of the connection
+	 * @return The agents attached at the change, which are told about it; the ones attaching later see the new state
+	 */
+	private List<WsClientMsgHandler> setOpen( boolean open ) {
+		synchronized ( BodyHub.class ) {
+			this.open = open;
+			return new ArrayList<>( routes.values() );
+		}
+	}
+
+	@Override
+	public void handleMsg( String msg ) {
+		String receiver = decoder.receiverOf( msg );
+		if ( isBroadcast( receiver ) ) {
+			for ( WsClientMsgHandler h : routes.values() )
+				h.handleMsg( msg );
+			return;
+		}
+		WsClientMsgHandler handler = routes.get( receiver );
+		if ( handler != null )
+			handler.handleMsg( msg );
+		else
+			drop( receiver );
+	}
+
+	@Override
+	public void handleMsg( ByteBuffer msg ) {
+		String receiver = BinaryCodec.receiverOf( msg );
+		if ( isBroadcast( receiver ) ) {
+			// Every agent decodes the frame from the start
+			for ( WsClientMsgHandler h : routes.values() )
+				h.handleMsg( msg.duplicate() );
+			return;
+		}
+		WsClientMsgHandler handler = routes.get( receiver );
+		if ( handler != null )
+			handler.handleMsg( msg );
+		else
+			drop( receiver );
+	}
+
+	/** A message without receiver (or too malformed to read it) still goes to all the agents, which report it */
+	private static boolean isBroadcast( String receiver ) {
+		return receiver == null || receiver.isEmpty() || receiver.equals( BROADCAST );
+	}
+
+	/** Drops a message for an agent that is not attached, logging each unknown receiver once */
+	private void drop( String receiver ) {
+		long n = dropped.incrementAndGet();
+		if ( unknown.add( receiver ) )
+			logger.warning( "Hub " + name + ": dropped a message for " + receiver + ", which is not attached (" + n + " dropped so far)" );
+	}
+
+	@Override
+	public void handleError( Exception ex ) {
+		for ( WsClientMsgHandler handler : routes.values() )
+			handler.handleError( ex );
+	}
+
+}
@@ -0,0 +1,75 @@
+package vesna;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * 	The connection of an agent (or of a {@link BodyHub}) to the body, whatever the transport.
+ * </p>
+ * <p>
+ * 	The transport is chosen from the .jcm:
+ * <pre>
+ * transport: nio
+ * </pre>
+ * 	<ul>
+ * 		<li> {@code websocket} (default) is a {@link WsClient}, with its own read and write threads;</li>
+ * 		<li> {@code nio} is a {@link NioBodyLink}, served with all the other ones by a shared selector thread
+ * 		and a small fixed pool of workers, so the threads do not grow with the agents.</li>
+ * 	</ul>
+ * 	Both reconnect with a {@link Backoff} whenever the connection is lost or cannot be opened.
+ * </p>
+ * @author Andrea Gatti
+ */
+public interface BodyLink {
+
+	/** Creates a link, not connected yet
+	 * @param address The address of the body, e.g. {@code ws://localhost:9080}
+	 * @param binary true to propose the binary codec to the body, falling back to JSON if it does not accept it
+	 * @param nio true for the shared NIO transport, false for a WebSocket client of its own
+	 */
+	static BodyLink create( URI address, boolean binary, boolean nio ) {
+		return nio ? new NioBodyLink( address, binary ) : new WsClient( address, binary );
+	}
+
+	void setMsgHandler( WsClientMsgHandler handler );
+
+	void setTracer( Tracer tracer );
+
+	/** Sets the backoff of the reconnection attempts, in milliseconds (see {@link Backoff}) */
+	void setBackoff( long minDelay, long maxDelay );
+
+	/** Starts opening the connection without waiting for the handshake; if it fails the link keeps trying in the background */
+	void connect();
+
+	/** Opens the connection, waiting for the handshake; if it fails the link keeps trying in the background
+	 * @return true if the connection is open
+	 */
+	boolean connectBlocking() throws InterruptedException;
+
+	boolean isOpen();
+
+	/** Checks if the body accepted the binary codec during the handshake
+	 * @return true if frames should be encoded with the {@link BinaryCodec}
+	 */
+	boolean isBinary();
+
+	/** Sends a frame; the frame is only valid during the call
+	 * @param frame A {@link BinaryCodec} frame or UTF-8 JSON text
+	 * @param binary true if it is a binary frame
+	 * @return false if the body is not connected and the frame was not sent
+	 */
+	boolean write( ByteBuffer frame, boolean binary );
+
+	/** Sends a JSON message
+	 * @return false if the body is not connected and the message was not sent
+	 */
+	boolean write( String text );
+
+	/** Closes the connection for good, without reconnecting */
+	void shutdown();
+
+	/** @return The latency and traffic of the link, pinging the body while it is open */
+	LinkMetrics getMetrics();
+
+}
@@ -0,0 +1,121 @@
+package vesna;
+
+import jason.asSyntax.Literal;
+import jason.asSyntax.Term;
+
+import static jason.asSyntax.ASSyntax.*;
+
+/**
+ * <p>
+ * 	A message received from the body, already decoded into a Jason perception.
+ * </p>
+ * <p>
+ * 	The perception is either a <i>belief</i> that is added to the belief base
+ * 	or a <i>signal</i> that is sensed by the agent as a message from itself.
+ * </p>
+ * @author Andrea Gatti
+ */
+public final class BodyMsg {
+
+	/** How the perception reaches the mind */
+	public enum Kind { BELIEF, SIGNAL };
+
+	/** The message type as written in the envelope */
+	private final String type;
+	/** The sender of the message (usually "body") */
+	private final String sender;
+	/** The receiver of the message */
+	private final String receiver;
+	/** The perception built from the message data */
+	private final Literal perception;
+	/** How the perception should be delivered */
+	private final Kind kind;
+	/** When the body sent the message, in milliseconds since the epoch; 0 if unknown */
+	private final long timestamp;
+	/** The id of the action this message completes, 0 if none */
+	private final long actionId;
+	/** Arrival order, given by the {@link PerceptionInbox} */
+	long seq;
+
+	public BodyMsg( String type, String sender, String receiver, Literal perception, Kind kind ) {
+		this( type, sender, receiver, perception, kind, 0 );
+	}
+
+	public BodyMsg( String type, String sender, String receiver, Literal perception, Kind kind, long timestamp ) {
+		this( type, sender, receiver, perception, kind, timestamp, 0 );
+	}
+
+	public BodyMsg( String type, String sender, String receiver, Literal perception, Kind kind, long timestamp, long actionId ) {
+		this.type = type;
+		this.sender = sender;
+		this.receiver = receiver;
+		this.perception = perception;
+		this.kind = kind;
+		this.timestamp = timestamp;
+		this.actionId = actionId;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getReceiver() {
+		return receiver;
+	}
+
+	public Literal getPerception() {
+		return perception;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/** @return When the body sent the message, in milliseconds since the epoch; 0 if the body did not say */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** @return The id of the action this message completes, echoed by the body; 0 if none (see {@link ActionRegistry}) */
+	public long getActionId() {
+		return actionId;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	/** The key used to coalesce messages: two messages with the same key describe the same thing
+	 * @return The functor of the perception with all the arguments but the last one,
+	 * e.g. {@code sight( player, Id )} for {@code sight( player, Id, pos( X, Y ) )}
+	 */
+	public Literal getKey() {
+		return keyOf( perception, -1 );
+	}
+
+	/** Builds the key of a perception: its functor with the first arguments.
+	 * The inbox lanes, the {@link BeliefSlots} and the {@link PerceptionThrottle} all key the perceptions with it,
+	 * so that they agree on what describes the same thing.
+	 * @param perception The perception
+	 * @param arity The number of leading arguments of the key; if negative or larger than the perception, all the arguments but the last one
+	 * @return The key
+	 */
+	public static Literal keyOf( Literal perception, int arity ) {
+		if ( arity < 0 || arity > perception.getArity() )
+			arity = Math.max( perception.getArity() - 1, 0 );
+		Term[] key = new Term[ arity ];
+		for ( int i = 0; i < arity; i++ )
+			key[ i ] = perception.getTerm( i );
+		return createLiteral( perception.getFunctor(), key );
+	}
+
+	@Override
+	public String toString() {
+		return type + " -> " + perception;
+	}
+
+}
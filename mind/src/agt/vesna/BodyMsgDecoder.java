@@ -0,0 +1,575 @@
+package vesna;
+
+import jason.asSyntax.*;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * 	Streaming decoder for the messages sent by the body.
+ * </p>
+ * <p>
+ * 	It knows the fixed envelope ({@code sender}, {@code receiver}, {@code type}, {@code data} and the optional {@code ts} and {@code aid})
+ * 	and the payloads of the known types ({@code sight}, {@code signal}, {@code allies},
+ * 	{@code navigation} and {@code event}) and reads them directly from the text into Jason terms,
+ * 	without building an intermediate JSON tree.
+ * 	The envelope keys may come in any order: Godot sorts them, so {@code data} usually comes first
+ * 	and it is decoded only once the type is known.
+ * </p>
+ * <p>
+ * 	Whenever a message is of an unknown type or does not have the expected shape
+ * 	{@link #decode(String, List, Function)} hands it to the generic JSON path given by the caller.
+ * 	The decoder keeps its cursor in fields: use one instance per thread.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class BodyMsgDecoder {
+
+	/** Raised when the text does not match the expected shape; preallocated since it is only used for control flow */
+	private static final class Mismatch extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Mismatch() {
+			super( "Unexpected message shape", null, false, false );
+		}
+	}
+	private static final Mismatch MISMATCH = new Mismatch();
+
+	/** Exact powers of ten used to parse decimals without allocating */
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/** The message being decoded */
+	private String src;
+	/** The current position inside the message */
+	private int pos;
+	/** Start of the last key read */
+	private int keyStart;
+	/** Length of the last key read */
+	private int keyLen;
+	/** The envelope of the message being decoded */
+	private String sender;
+	private String receiver;
+	private String type;
+	/** The body timestamp of the envelope, 0 if missing */
+	private long timestamp;
+	/** The id of the action completed by the message, 0 if missing */
+	private long actionId;
+	/** Start of the data object of the envelope, -1 if missing */
+	private int dataStart;
+
+	/** Decodes a message coming from the body, which may be a {@code batch} of messages
+	 * <p>
+	 * A batch carries the messages of a whole physics frame:
+	 * {@code { "type": "batch", "data": { "messages": [ MSG, ... ] } }}.
+	 * Every message, alone or in a batch, that the decoder does not know is handed as text to the fallback.
+	 * </p>
+	 * @param msg The message formatted as JSON string
+	 * @param out The list where the decoded messages are added, in the order they were sent
+	 * @param fallback The generic path for the messages the decoder does not know; it may return {@code null}
+	 */
+	public void decode( String msg, List<BodyMsg> out, Function<String, BodyMsg> fallback ) {
+		src = msg;
+		pos = 0;
+		int size = out.size();
+		BodyMsg decoded = null;
+		try {
+			scanEnvelope();
+			if ( "batch".equals( type ) ) {
+				pos = dataStart;
+				decodeBatch( out, fallback );
+				return;
+			}
+			decoded = decodePayload();
+		} catch ( Mismatch | IndexOutOfBoundsException e ) {
+			// A malformed batch is handed whole to the fallback
+			out.subList( size, out.size() ).clear();
+		} finally {
+			src = null;
+		}
+		if ( decoded == null )
+			decoded = fallback.apply( msg );
+		if ( decoded != null )
+			out.add( decoded );
+	}
+
+	/** Reads the receiver of a message without decoding its data, to route it
+	 * @param msg The message formatted as JSON string
+	 * @return The receiver, or {@code null} if the message is malformed or does not say
+	 */
+	public String receiverOf( String msg ) {
+		src = msg;
+		pos = 0;
+		try {
+			scanEnvelope();
+			return receiver;
+		} catch ( Mismatch | IndexOutOfBoundsException e ) {
+			return null;
+		} finally {
+			src = null;
+		}
+	}
+
+	/****************************************/
+	/* ENVELOPE AND PAYLOADS                */
+	/****************************************/
+
+	/** Reads the envelope at the cursor into {@link #sender}, {@link #receiver}, {@link #type} and {@link #dataStart} */
+	private void scanEnvelope() {
+		sender = null;
+		receiver = null;
+		type = null;
+		timestamp = 0;
+		actionId = 0;
+		dataStart = -1;
+
+		skipWs();
+		expect( '{' );
+		if ( !isEmpty( '}' ) ) {
+			do {
+				readKey();
+				if ( key( "sender" ) )
+					sender = readString();
+				else if ( key( "receiver" ) )
+					receiver = readString();
+				else if ( key( "type" ) )
+					type = readString();
+				else if ( key( "ts" ) )
+					timestamp = ( long ) readNumber();
+				else if ( key( "aid" ) )
+					actionId = ( long ) readNumber();
+				else if ( key( "data" ) ) {
+					dataStart = pos;
+					skipValue();
+				} else
+					skipValue();
+			} while ( nextMember( '}' ) );
+		}
+	}
+
+	/** Decodes the data of the envelope just scanned
+	 * @return The decoded message, or {@code null} if the type is unknown or the data does not have the expected shape
+	 */
+	private BodyMsg decodePayload() {
+		if ( type == null || dataStart < 0 )
+			return null;
+
+		int end = pos;
+		pos = dataStart;
+		Literal perception;
+		BodyMsg.Kind kind = BodyMsg.Kind.BELIEF;
+		switch ( type ) {
+			case "signal":
+				perception = decodeSignal();
+				kind = BodyMsg.Kind.SIGNAL;
+				break;
+			case "sight":
+				perception = decodeSight();
+				break;
+			case "allies":
+				perception = decodeAllies();
+				break;
+			case "navigation":
+				perception = decodeNavigation();
+				break;
+			case "event":
+				perception = decodeEvent();
+				break;
+			default:
+				perception = null;
+		}
+		pos = end;
+		if ( perception == null )
+			return null;
+		return new BodyMsg( type, sender, receiver, perception, kind, timestamp, actionId );
+	}
+
+	/** {@code { "messages": [ MSG, ... ] }} becomes one message for each entry */
+	private void decodeBatch( List<BodyMsg> out, Function<String, BodyMsg> fallback ) {
+		expect( '{' );
+		if ( isEmpty( '}' ) )
+			return;
+		do {
+			readKey();
+			if ( !key( "messages" ) ) {
+				skipValue();
+				continue;
+			}
+			expect( '[' );
+			if ( isEmpty( ']' ) )
+				continue;
+			do {
+				skipWs();
+				int start = pos;
+				skipValue();
+				int end = pos;
+				BodyMsg entry = null;
+				try {
+					pos = start;
+					scanEnvelope();
+					// Batches do not nest
+					if ( !"batch".equals( type ) )
+						entry = decodePayload();
+				} catch ( Mismatch | IndexOutOfBoundsException e ) {
+					entry = null;
+				}
+				if ( entry == null )
+					entry = fallback.apply( src.substring( start, end ) );
+				if ( entry != null )
+					out.add( entry );
+				pos = end;
+			} while ( nextMember( ']' ) );
+		} while ( nextMember( '}' ) );
+	}
+
+	/** {@code { "type": T, "status": S, "reason": R }} becomes {@code T( S, R )} */
+	private Literal decodeSignal() {
+		String eventType = null;
+		String status = null;
+		String reason = null;
+		expect( '{' );
+		if ( !isEmpty( '}' ) ) {
+			do {
+				readKey();
+				if ( key( "type" ) )
+					eventType = readString();
+				else if ( key( "status" ) )
+					status = readString();
+				else if ( key( "reason" ) )
+					reason = readString();
+				else
+					skipValue();
+			} while ( nextMember( '}' ) );
+		}
+		if ( eventType == null || status == null || reason == null )
+			return null;
+		return signal( eventType, status, reason );
+	}
+
+	/** {@code { "sight": O, "id": I, "pos_x": X, "pos_y": Y }} becomes {@code sight( O, I, pos( X, Y ) )} or {@code sight( O, I )} */
+	private Literal decodeSight() {
+		String object = null;
+		double id = 0;
+		boolean hasId = false;
+		double posX = 0;
+		double posY = 0;
+		boolean hasX = false;
+		boolean hasY = false;
+		expect( '{' );
+		if ( !isEmpty( '}' ) ) {
+			do {
+				readKey();
+				if ( key( "sight" ) )
+					object = readString();
+				else if ( key( "id" ) ) {
+					id = ( long ) readNumber();
+					hasId = true;
+				} else if ( key( "pos_x" ) ) {
+					posX = readNumber();
+					hasX = true;
+				} else if ( key( "pos_y" ) ) {
+					posY = readNumber();
+					hasY = true;
+				} else
+					skipValue();
+			} while ( nextMember( '}' ) );
+		}
+		if ( object == null || !hasId )
+			return null;
+		return sight( object, id, hasX && hasY, posX, posY );
+	}
+
+	/** {@code { "allies": [ A, B ] }} becomes {@code allies_nearby( [ A, B ] )} */
+	private Literal decodeAllies() {
+		ListTerm allyList = null;
+		expect( '{' );
+		if ( !isEmpty( '}' ) ) {
+			do {
+				readKey();
+				if ( key( "allies" ) ) {
+					allyList = new ListTermImpl();
+					expect( '[' );
+					if ( !isEmpty( ']' ) ) {
+						do {
+							skipWs();
+							allyList.add( TermCache.atom( readString() ) );
+						} while ( nextMember( ']' ) );
+					}
+				} else
+					skipValue();
+			} while ( nextMember( '}' ) );
+		}
+		if ( allyList == null )
+			return null;
+		return createLiteral( "allies_nearby", allyList );
+	}
+
+	/** {@code { "status": S, "waypoint": W }} becomes {@code navigation( S, W )} */
+	private Literal decodeNavigation() {
+		String status = null;
+		String waypoint = null;
+		expect( '{' );
+		if ( !isEmpty( '}' ) ) {
+			do {
+				readKey();
+				if ( key( "status" ) )
+					status = readString();
+				else if ( key( "waypoint" ) )
+					waypoint = readString();
+				else
+					skipValue();
+			} while ( nextMember( '}' ) );
+		}
+		if ( status == null || waypoint == null )
+			return null;
+		return navigation( status, waypoint );
+	}
+
+	/** {@code { "event": "target_lost", "pos_x": X, "pos_y": Y, "reason": R }} becomes {@code target_lost( pos( X, Y ), R )} */
+	private Literal decodeEvent() {
+		String eventName = null;
+		String reason = null;
+		double posX = 0;
+		double posY = 0;
+		boolean hasX = false;
+		boolean hasY = false;
+		expect( '{' );
+		if ( !isEmpty( '}' ) ) {
+			do {
+				readKey();
+				if ( key( "event" ) )
+					eventName = readString();
+				else if ( key( "reason" ) )
+					reason = readString();
+				else if ( key( "pos_x" ) ) {
+					posX = readNumber();
+					hasX = true;
+				} else if ( key( "pos_y" ) ) {
+					posY = readNumber();
+					hasY = true;
+				} else
+					skipValue();
+			} while ( nextMember( '}' ) );
+		}
+		// Other events are left to the generic path
+		if ( !"target_lost".equals( eventName ) || reason == null || !hasX || !hasY )
+			return null;
+		return targetLost( posX, posY, reason );
+	}
+
+	/****************************************/
+	/* PERCEPTIONS                          */
+	/****************************************/
+
+	// The perceptions built from the payloads, shared with the BinaryCodec;
+	// the vocabulary (objects, statuses, reasons, names) is interned in the TermCache
+
+	static Literal signal( String eventType, String status, String reason ) {
+		return createLiteral( eventType, TermCache.atom( status ), TermCache.atom( reason ) );
+	}
+
+	static Literal sight( String object, double id, boolean hasPos, double posX, double posY ) {
+		if ( hasPos )
+			return createLiteral( "sight", TermCache.atom( object ), createNumber( id ),
+				createLiteral( "pos", createNumber( posX ), createNumber( posY ) ) );
+		return createLiteral( "sight", TermCache.atom( object ), createNumber( id ) );
+	}
+
+	static Literal allies( Iterable<String> names ) {
+		ListTerm allyList = new ListTermImpl();
+		for ( String name : names )
+			allyList.add( TermCache.atom( name ) );
+		return createLiteral( "allies_nearby", allyList );
+	}
+
+	static Literal navigation( String status, String waypoint ) {
+		return createLiteral( "navigation", TermCache.atom( status ), TermCache.atom( waypoint ) );
+	}
+
+	static Literal targetLost( double posX, double posY, String reason ) {
+		return createLiteral( "target_lost", createLiteral( "pos", createNumber( posX ), createNumber( posY ) ), TermCache.atom( reason ) );
+	}
+
+	/****************************************/
+	/* SCANNING                             */
+	/****************************************/
+
+	private void skipWs() {
+		char c;
+		while ( pos < src.length() && ( ( c = src.charAt( pos ) ) == ' ' || c == '\n' || c == '\r' || c == '\t' ) )
+			pos++;
+	}
+
+	private void expect( char c ) {
+		skipWs();
+		if ( src.charAt( pos ) != c )
+			throw MISMATCH;
+		pos++;
+	}
+
+	/** Checks if the object or array just opened is empty, consuming the closing char if so */
+	private boolean isEmpty( char close ) {
+		skipWs();
+		if ( src.charAt( pos ) == close ) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	/** Consumes the separator after a member
+	 * @return true if another member follows, false if the object or array is closed
+	 */
+	private boolean nextMember( char close ) {
+		skipWs();
+		char c = src.charAt( pos++ );
+		if ( c == ',' )
+			return true;
+		if ( c == close )
+			return false;
+		throw MISMATCH;
+	}
+
+	/** Reads {@code "key" :} remembering where the key is, without allocating it */
+	private void readKey() {
+		expect( '"' );
+		keyStart = pos;
+		while ( src.charAt( pos ) != '"' ) {
+			if ( src.charAt( pos ) == '\\' )
+				throw MISMATCH;
+			pos++;
+		}
+		keyLen = pos - keyStart;
+		pos++;
+		expect( ':' );
+		skipWs();
+	}
+
+	private boolean key( String name ) {
+		return keyLen == name.length() && src.regionMatches( keyStart, name, 0, keyLen );
+	}
+
+	private String readString() {
+		if ( src.charAt( pos ) != '"' )
+			throw MISMATCH;
+		int start = ++pos;
+		while ( true ) {
+			char c = src.charAt( pos );
+			if ( c == '"' ) {
+				pos++;
+				return src.substring( start, pos - 1 );
+			}
+			if ( c == '\\' )
+				return readEscapedString( start );
+			pos++;
+		}
+	}
+
+	/** Slow path of {@link #readString()} for strings that contain escapes */
+	private String readEscapedString( int start ) {
+		StringBuilder sb = new StringBuilder( src.length() - start );
+		sb.append( src, start, pos );
+		while ( true ) {
+			char c = src.charAt( pos++ );
+			if ( c == '"' )
+				return sb.toString();
+			if ( c != '\\' ) {
+				sb.append( c );
+				continue;
+			}
+			c = src.charAt( pos++ );
+			switch ( c ) {
+				case 'b': sb.append( '\b' ); break;
+				case 'f': sb.append( '\f' ); break;
+				case 'n': sb.append( '\n' ); break;
+				case 'r': sb.append( '\r' ); break;
+				case 't': sb.append( '\t' ); break;
+				case 'u':
+					sb.append( ( char ) Integer.parseInt( src.substring( pos, pos + 4 ), 16 ) );
+					pos += 4;
+					break;
+				default: sb.append( c );
+			}
+		}
+	}
+
+	/** Reads a JSON number; plain decimals are parsed in place, anything else goes through Double.parseDouble */
+	private double readNumber() {
+		int start = pos;
+		boolean negative = false;
+		if ( src.charAt( pos ) == '-' ) {
+			negative = true;
+			pos++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fracDigits = 0;
+		boolean fraction = false;
+		while ( pos < src.length() ) {
+			char c = src.charAt( pos );
+			if ( c >= '0' && c <= '9' ) {
+				mantissa = mantissa * 10 + ( c - '0' );
+				digits++;
+				if ( fraction )
+					fracDigits++;
+			} else if ( c == '.' && !fraction )
+				fraction = true;
+			else
+				break;
+			pos++;
+		}
+		if ( digits == 0 )
+			throw MISMATCH;
+		if ( pos < src.length() && ( src.charAt( pos ) == 'e' || src.charAt( pos ) == 'E' ) || digits > 15 || fracDigits >= POW10.length ) {
+			skipScalar();
+			return Double.parseDouble( src.substring( start, pos ) );
+		}
+		double value = fracDigits == 0 ? mantissa : mantissa / POW10[ fracDigits ];
+		return negative ? -value : value;
+	}
+
+	private void skipScalar() {
+		char c;
+		while ( pos < src.length() && ( c = src.charAt( pos ) ) != ',' && c != '}' && c != ']' && c != ' ' && c != '\n' && c != '\r' && c != '\t' )
+			pos++;
+	}
+
+	private void skipValue() {
+		char c = src.charAt( pos );
+		if ( c == '"' ) {
+			skipString();
+		} else if ( c == '{' || c == '[' ) {
+			int depth = 0;
+			do {
+				c = src.charAt( pos );
+				if ( c == '"' ) {
+					skipString();
+					continue;
+				}
+				if ( c == '{' || c == '[' )
+					depth++;
+				else if ( c == '}' || c == ']' )
+					depth--;
+				pos++;
+			} while ( depth > 0 );
+		} else
+			skipScalar();
+	}
+
+	private void skipString() {
+		pos++;
+		while ( true ) {
+			char c = src.charAt( pos++ );
+			if ( c == '\\' )
+				pos++;
+			else if ( c == '"' )
+				return;
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package vesna;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * 	Remembers the last deterministic decisions of a {@link Temper}: the candidate plans, the version of the mood and the chosen one.
+ * </p>
+ * <p>
+ * 	The same guard firing with the same plans and an unchanged mood can only lead to the same choice,
+ * 	so the choice is returned without weighting the plans again. The candidates are compared by identity:
+ * 	a plan compiled again is a different candidate. The cache is direct mapped, the last decision wins its slot,
+ * 	and it does not allocate once its slots have grown to the largest candidate set.
+ * </p>
+ * @author Andrea Gatti
+ */
+class DecisionCache {
+
+    private static final int SLOTS = 16;
+
+    private final PlanTemper[][] candidates = new PlanTemper[ SLOTS ][ 0 ];
+    private final int[] counts = new int[ SLOTS ];
+    private final int[] hashes = new int[ SLOTS ];
+    private final long[] versions = new long[ SLOTS ];
+    private final int[] chosen = new int[ SLOTS ];
+
+    DecisionCache() {
+        Arrays.fill( counts, -1 );
+    }
+
+    /** @return The hash of the candidates, as used by {@link #get} and {@link #put} */
+    static int hash( PlanTemper[] plans, int count ) {
+        int hash = 1;
+        for ( int i = 0; i < count; i++ )
+            hash = 31 * hash + System.identityHashCode( plans[ i ] );
+        return hash;
+    }
+
+    /** @return The index of the choice made among the same candidates with the same mood, -1 if none */
+    int get( PlanTemper[] plans, int count, int hash, long version ) {
+        int slot = slot( hash );
+        if ( counts[ slot ] != count || hashes[ slot ] != hash || versions[ slot ] != version )
+            return -1;
+        PlanTemper[] cached = candidates[ slot ];
+        for ( int i = 0; i < count; i++ )
+            if ( cached[ i ] != plans[ i ] )
+                return -1;
+        return chosen[ slot ];
+    }
+
+    /** Remembers the choice made among the candidates with a mood */
+    void put( PlanTemper[] plans, int count, int hash, long version, int choice ) {
+        int slot = slot( hash );
+        if ( candidates[ slot ].length < count )
+            candidates[ slot ] = new PlanTemper[ count ];
+        System.arraycopy( plans, 0, candidates[ slot ], 0, count );
+        Arrays.fill( candidates[ slot ], count, candidates[ slot ].length, null );
+        counts[ slot ] = count;
+        hashes[ slot ] = hash;
+        versions[ slot ] = version;
+        chosen[ slot ] = choice;
+    }
+
+    private static int slot( int hash ) {
+        return ( hash ^ ( hash >>> 16 ) ) & ( SLOTS - 1 );
+    }
+
+}
@@ -0,0 +1,285 @@
+package vesna;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * 	Latency and traffic of a connection to the body.
+ * </p>
+ * <p>
+ * 	While the connection is open the link sends a WebSocket ping every {@value #DEFAULT_PING_PERIOD} ms
+ * 	(or as configured from the .jcm, {@code 0} disables them) carrying its send time; the body answers with a pong
+ * 	without involving the scripts, so the round-trip time measures the network and the sockets alone.
+ * 	The times go into a histogram of fixed size, with buckets {@value #SUB_BUCKETS} per power of two of microseconds,
+ * 	so its percentiles are exact to about 12% however long the agent lives.
+ * </p>
+ * <p>
+ * 	The frames and their bytes are counted in each direction; the rates per second are sampled at every ping.
+ * 	The bytes are the payloads, counted in characters for the received text.
+ * 	An agent reads them with {@code vesna.metrics} or logs them periodically with
+ * <pre>
+ * metrics: 10000
+ * </pre>
+ * 	The pings and the exports of all the agents are scheduled by a single background thread.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class LinkMetrics {
+
+	/** Default milliseconds between two pings */
+	public static final long DEFAULT_PING_PERIOD = 1000;
+	/** Buckets for each power of two */
+	public static final int SUB_BUCKETS = 8;
+	private static final int SUB_BITS = 3;
+	/** Longest time recorded, in microseconds (about 18 minutes) */
+	private static final long MAX_MICROS = ( 1L << 30 ) - 1;
+	private static final int BUCKETS = index( MAX_MICROS ) + 1;
+
+	/** The thread sending the pings and exporting the metrics of all the agents */
+	private static ScheduledExecutorService scheduler;
+
+	private final AtomicLongArray histogram = new AtomicLongArray( BUCKETS );
+	private final AtomicLong pings = new AtomicLong();
+	private final AtomicLong pongs = new AtomicLong();
+	private final AtomicLong maxRtt = new AtomicLong();
+
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong framesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong framesOut = new AtomicLong();
+
+	/** The counters at the last sample, only touched by the scheduler */
+	private long sampledAt = System.nanoTime();
+	private long lastBytesIn, lastFramesIn, lastBytesOut, lastFramesOut;
+	private volatile double bytesInRate, framesInRate, bytesOutRate, framesOutRate;
+
+	private long pingPeriod = DEFAULT_PING_PERIOD;
+	private ScheduledFuture<?> ticking;
+
+	/** Sets how often the link pings the body
+	 * @param period Milliseconds between two pings, {@code 0} to disable them
+	 */
+	public void setPingPeriod( long period ) throws IllegalArgumentException {
+		if ( period < 0 )
+			throw new IllegalArgumentException( "The ping period must not be negative, found: " + period );
+		this.pingPeriod = period;
+	}
+
+	/** Starts pinging, once the connection is open
+	 * @param ping Sends a ping with the given payload
+	 */
+	public synchronized void start( Consumer<ByteBuffer> ping ) {
+		stop();
+		if ( pingPeriod == 0 )
+			return;
+		ticking = every( () -> {
+			sample();
+			ByteBuffer payload = ByteBuffer.allocate( Long.BYTES ).putLong( 0, System.nanoTime() );
+			pings.incrementAndGet();
+			ping.accept( payload );
+		}, pingPeriod );
+	}
+
+	/** Stops pinging, once the connection is closed */
+	public synchronized void stop() {
+		if ( ticking != null )
+			ticking.cancel( false );
+		ticking = null;
+	}
+
+	/** Records the round-trip time of a pong
+	 * @param payload The payload of the pong, the one of a ping sent by {@link #start}; other pongs are ignored
+	 */
+	public void pong( ByteBuffer payload ) {
+		if ( payload.remaining() != Long.BYTES )
+			return;
+		long rtt = Math.max( 0, ( System.nanoTime() - payload.getLong( payload.position() ) ) / 1000 );
+		pongs.incrementAndGet();
+		maxRtt.accumulateAndGet( rtt, Math::max );
+		histogram.incrementAndGet( index( Math.min( rtt, MAX_MICROS ) ) );
+	}
+
+	/** Counts a frame received from the body
+	 * @param bytes Its payload size
+	 */
+	public void received( int bytes ) {
+		framesIn.incrementAndGet();
+		bytesIn.addAndGet( bytes );
+	}
+
+	/** Counts a frame sent to the body
+	 * @param bytes Its payload size
+	 */
+	public void sent( int bytes ) {
+		framesOut.incrementAndGet();
+		bytesOut.addAndGet( bytes );
+	}
+
+	/** Counts a text frame received from the body
+	 * @param text Its payload, counted in UTF-8 bytes like the binary frames
+	 */
+	public void received( CharSequence text ) {
+		received( utf8Length( text ) );
+	}
+
+	/** Counts a text frame sent to the body
+	 * @param text Its payload, counted in UTF-8 bytes like the binary frames
+	 */
+	public void sent( CharSequence text ) {
+		sent( utf8Length( text ) );
+	}
+
+	/** @return The size of the text encoded in UTF-8, without encoding it */
+	static int utf8Length( CharSequence text ) {
+		int len = 0;
+		for ( int i = 0; i < text.length(); i++ ) {
+			char c = text.charAt( i );
+			if ( c < 0x80 )
+				len += 1;
+			else if ( c < 0x800 )
+				len += 2;
+			else if ( Character.isHighSurrogate( c ) && i + 1 < text.length() && Character.isLowSurrogate( text.charAt( i + 1 ) ) ) {
+				len += 4;
+				i++;
+			} else
+				len += 3;
+		}
+		return len;
+	}
+
+	/** Updates the rates with the traffic since the last sample */
+	private void sample() {
+		long now = System.nanoTime();
+		double seconds = ( now - sampledAt ) / 1e9;
+		if ( seconds <= 0 )
+			return;
+		long bi = bytesIn.get(), fi = framesIn.get(), bo = bytesOut.get(), fo = framesOut.get();
+		bytesInRate = ( bi - lastBytesIn ) / seconds;
+		framesInRate = ( fi - lastFramesIn ) / seconds;
+		bytesOutRate = ( bo - lastBytesOut ) / seconds;
+		framesOutRate = ( fo - lastFramesOut ) / seconds;
+		lastBytesIn = bi;
+		lastFramesIn = fi;
+		lastBytesOut = bo;
+		lastFramesOut = fo;
+		sampledAt = now;
+	}
+
+	/****************************************/
+	/* HISTOGRAM                            */
+	/****************************************/
+
+	/** The bucket of a time: the values below {@value #SUB_BUCKETS} have one each, then each power of two is split in {@value #SUB_BUCKETS} */
+	private static int index( long micros ) {
+		if ( micros < SUB_BUCKETS )
+			return ( int ) micros;
+		int shift = 63 - Long.numberOfLeadingZeros( micros ) - SUB_BITS;
+		return shift * SUB_BUCKETS + ( int ) ( micros >>> shift );
+	}
+
+	/** The middle of a bucket, in microseconds */
+	private static double value( int index ) {
+		if ( index < SUB_BUCKETS )
+			return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long low = ( long ) ( index % SUB_BUCKETS + SUB_BUCKETS ) << shift;
+		return low + ( ( 1L << shift ) - 1 ) / 2.0;
+	}
+
+	/** @param p The percentile, between 0 and 100
+	 * @return The round-trip time of the pings below which there are p% of them, in milliseconds; 0 if no pong came back
+	 */
+	public double getRttPercentile( double p ) {
+		long total = 0;
+		long[] counts = new long[ BUCKETS ];
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			counts[ i ] = histogram.get( i );
+			total += counts[ i ];
+		}
+		if ( total == 0 )
+			return 0;
+		long rank = Math.max( 1, ( long ) Math.ceil( total * p / 100 ) );
+		long seen = 0;
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			seen += counts[ i ];
+			if ( seen >= rank )
+				return Math.min( value( i ), maxRtt.get() ) / 1000;
+		}
+		return maxRtt.get() / 1000.0;
+	}
+
+	/** @return The longest round-trip time of the pings in milliseconds */
+	public double getMaxRtt() {
+		return maxRtt.get() / 1000.0;
+	}
+
+	/** @return The number of pings sent */
+	public long getPings() {
+		return pings.get();
+	}
+
+	/** @return The number of pongs received */
+	public long getPongs() {
+		return pongs.get();
+	}
+
+	public double getBytesInRate() {
+		return bytesInRate;
+	}
+
+	public double getFramesInRate() {
+		return framesInRate;
+	}
+
+	public double getBytesOutRate() {
+		return bytesOutRate;
+	}
+
+	public double getFramesOutRate() {
+		return framesOutRate;
+	}
+
+	/** @return The total frames received and sent */
+	public long getFramesIn() {
+		return framesIn.get();
+	}
+
+	public long getFramesOut() {
+		return framesOut.get();
+	}
+
+	/** @return The metrics on one line, as exported to the log */
+	@Override
+	public String toString() {
+		return String.format( "rtt p50 %.2f ms p99 %.2f ms max %.2f ms (%d/%d pongs), in %.0f B/s %.1f frames/s, out %.0f B/s %.1f frames/s",
+			getRttPercentile( 50 ), getRttPercentile( 99 ), getMaxRtt(), getPongs(), getPings(),
+			bytesInRate, framesInRate, bytesOutRate, framesOutRate );
+	}
+
+	/** Runs a task periodically on the thread of the metrics, e.g. an export
+	 * @param task The task
+	 * @param period Milliseconds between two runs
+	 * @return The scheduled task, to cancel it
+	 */
+	public static ScheduledFuture<?> every( Runnable task, long period ) {
+		return scheduler().scheduleAtFixedRate( task, period, period, TimeUnit.MILLISECONDS );
+	}
+
+	private static synchronized ScheduledExecutorService scheduler() {
+		if ( scheduler == null )
+			scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+				Thread t = new Thread( r, "vesna-metrics" );
+				t.setDaemon( true );
+				return t;
+			} );
+		return scheduler;
+	}
+
+}
@@ -0,0 +1,57 @@
+package vesna;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 	An immutable copy of the mood of an agent, published by its {@link Temper} every time the mood changes.
+ * </p>
+ * <p>
+ * 	Monitors and other threads read it without locks while the agent keeps reasoning;
+ * 	the version tells two moods apart without comparing them.
+ * </p>
+ * @author Andrea Gatti
+ */
+public final class MoodSnapshot {
+
+    private final TraitRegistry traits;
+    private final double[] mood;
+    private final boolean[] inMood;
+    private final long version;
+
+    MoodSnapshot( TraitRegistry traits, double[] mood, boolean[] inMood, long version ) {
+        this.traits = traits;
+        this.mood = mood.clone();
+        this.inMood = inMood;
+        this.version = version;
+    }
+
+    /** @return The number of changes of the mood before this one */
+    public long getVersion() {
+        return version;
+    }
+
+    /** @param trait The name of a mood trait
+     * @return Its value, NaN if the mood does not have it
+     */
+    public double get( String trait ) {
+        int id = traits.id( trait );
+        return id < 0 || !inMood[ id ] ? Double.NaN : mood[ id ];
+    }
+
+    /** @return The mood traits with their values */
+    public Map<String, Double> toMap() {
+        Map<String, Double> map = new LinkedHashMap<>();
+        for ( int id = 0; id < mood.length; id++ )
+            if ( inMood[ id ] )
+                map.put( traits.name( id ), mood[ id ] );
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "mood" + toMap() + " v" + version;
+    }
+
+}
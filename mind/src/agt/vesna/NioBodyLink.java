@@ -0,0 +1,284 @@
+package vesna;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * 	Connection to the body served by a single event loop shared by all the agents of the JVM.
+ * </p>
+ * <p>
+ * 	A {@link WsClient} runs a read thread and a write thread for each agent, so a squad of hundreds of agents
+ * 	spends more threads (and their stacks) on the sockets than on reasoning. All the links of this transport
+ * 	share one {@link HttpClient}: its selector thread reads every socket, and the messages are handed to the
+ * 	agents by a fixed pool of {@value #WORKERS} workers. Each link asks for one message at a time,
+ * 	so the messages of an agent are still handled one after the other, in order.
+ * </p>
+ * <p>
+ * 	The writes are asynchronous: {@link #write(ByteBuffer, boolean)} copies the frame and chains it
+ * 	after the previous one, without blocking the reasoning cycle on the socket.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class NioBodyLink implements BodyLink, WebSocket.Listener {
+
+	/** Number of threads handing the messages to the agents */
+	public static final int WORKERS = 2;
+
+	/** The client shared by all the links */
+	private static HttpClient http;
+
+	private final URI address;
+	private final boolean offerBinary;
+	private WsClientMsgHandler msgHandler;
+	private Tracer tracer = Tracer.OFF;
+	private final Backoff backoff = new Backoff();
+	private final LinkMetrics metrics = new LinkMetrics();
+	/** True once the agent closed the connection for good */
+	private volatile boolean shutdown;
+	/** The open connection, null while disconnected */
+	private volatile WebSocket ws;
+	private volatile boolean binary;
+	/** The last write, the next one is chained after it */
+	private CompletableFuture<?> sending = CompletableFuture.completedFuture( null );
+	/** The parts of a fragmented message */
+	private StringBuilder text;
+	private ByteBuffer bytes;
+
+	/**
+	 * @param address The address of the body
+	 * @param binary true to propose the binary codec to the body, falling back to JSON if it does not accept it
+	 */
+	public NioBodyLink( URI address, boolean binary ) {
+		this.address = address;
+		this.offerBinary = binary;
+	}
+
+	@Override
+	public void setMsgHandler( WsClientMsgHandler handler ) {
+		this.msgHandler = handler;
+	}
+
+	@Override
+	public void setTracer( Tracer tracer ) {
+		this.tracer = tracer;
+	}
+
+	@Override
+	public void setBackoff( long minDelay, long maxDelay ) {
+		backoff.set( minDelay, maxDelay );
+	}
+
+	@Override
+	public void connect() {
+		open();
+	}
+
+	@Override
+	public boolean connectBlocking() throws InterruptedException {
+		try {
+			open().get();
+		} catch ( ExecutionException e ) {
+			// Already reported and rescheduled by open
+		}
+		return isOpen();
+	}
+
+	private CompletableFuture<WebSocket> open() {
+		WebSocket.Builder builder = http().newWebSocketBuilder();
+		if ( offerBinary )
+			builder.subprotocols( BinaryCodec.PROTOCOL );
+		return builder.buildAsync( address, this ).whenComplete( ( w, e ) -> {
+			if ( e != null ) {
+				if ( msgHandler != null )
+					msgHandler.handleError( e instanceof Exception ? ( Exception ) e : new Exception( e ) );
+				closed( -1, String.valueOf( e.getMessage() ), false );
+			}
+		} );
+	}
+
+	@Override
+	public boolean isOpen() {
+		WebSocket w = ws;
+		return w != null && !w.isOutputClosed();
+	}
+
+	@Override
+	public boolean isBinary() {
+		return binary;
+	}
+
+	@Override
+	public boolean write( ByteBuffer frame, boolean binary ) {
+		WebSocket w = ws;
+		if ( w == null || w.isOutputClosed() )
+			return false;
+		metrics.sent( frame.remaining() );
+		if ( binary ) {
+			ByteBuffer copy = ByteBuffer.allocate( frame.remaining() );
+			copy.put( frame.duplicate() ).flip();
+			chain( w, () -> w.sendBinary( copy, true ) );
+		} else {
+			String json = StandardCharsets.UTF_8.decode( frame.duplicate() ).toString();
+			chain( w, () -> w.sendText( json, true ) );
+		}
+		return true;
+	}
+
+	@Override
+	public boolean write( String text ) {
+		WebSocket w = ws;
+		if ( w == null || w.isOutputClosed() )
+			return false;
+		metrics.sent( text );
+		chain( w, () -> w.sendText( text, true ) );
+		return true;
+	}
+
+	private void ping( ByteBuffer payload ) {
+		WebSocket w = ws;
+		if ( w != null && !w.isOutputClosed() )
+			chain( w, () -> w.sendPing( payload ) );
+	}
+
+	/** Sends after the previous write: the WebSocket allows only one outstanding send */
+	private synchronized void chain( WebSocket w, Supplier<CompletableFuture<WebSocket>> send ) {
+		sending = sending.handle( ( x, e ) -> null ).thenCompose( x -> send.get() ).whenComplete( ( x, e ) -> {
+			if ( e != null )
+				w.abort();
+		} );
+	}
+
+	@Override
+	public LinkMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** Closes the connection after the writes still pending, which the close would otherwise fail or cut off */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		WebSocket w = ws;
+		if ( w != null && !w.isOutputClosed() )
+			chain( w, () -> w.sendClose( WebSocket.NORMAL_CLOSURE, "" ) );
+	}
+
+	/****************************************/
+	/* LISTENER                             */
+	/****************************************/
+
+	@Override
+	public void onOpen( WebSocket webSocket ) {
+		binary = BinaryCodec.PROTOCOL.equals( webSocket.getSubprotocol() );
+		ws = webSocket;
+		backoff.reset();
+		if ( tracer.isInfo() )
+			tracer.event( "new connection opened" + ( binary ? " (binary)" : "" ) );
+		if ( msgHandler != null )
+			msgHandler.handleOpen();
+		metrics.start( this::ping );
+		webSocket.request( 1 );
+	}
+
+	@Override
+	public CompletionStage<?> onText( WebSocket webSocket, CharSequence data, boolean last ) {
+		if ( !last || text != null ) {
+			if ( text == null )
+				text = new StringBuilder();
+			text.append( data );
+		}
+		if ( last ) {
+			String msg = text == null ? data.toString() : text.toString();
+			text = null;
+			metrics.received( msg );
+			if ( msgHandler != null )
+				msgHandler.handleMsg( msg );
+		}
+		webSocket.request( 1 );
+		return null;
+	}
+
+	@Override
+	public CompletionStage<?> onBinary( WebSocket webSocket, ByteBuffer data, boolean last ) {
+		if ( !last || bytes != null ) {
+			// The buffer of a part is only valid during the call
+			ByteBuffer all = ByteBuffer.allocate( ( bytes == null ? 0 : bytes.position() ) + data.remaining() );
+			if ( bytes != null )
+				all.put( bytes.flip() );
+			bytes = all.put( data );
+		}
+		if ( last ) {
+			ByteBuffer msg = bytes == null ? data : bytes.flip();
+			bytes = null;
+			metrics.received( msg.remaining() );
+			if ( msgHandler != null )
+				msgHandler.handleMsg( msg );
+		}
+		webSocket.request( 1 );
+		return null;
+	}
+
+	@Override
+	public CompletionStage<?> onPong( WebSocket webSocket, ByteBuffer message ) {
+		metrics.pong( message );
+		webSocket.request( 1 );
+		return null;
+	}
+
+	@Override
+	public CompletionStage<?> onClose( WebSocket webSocket, int statusCode, String reason ) {
+		closed( statusCode, reason, true );
+		return null;
+	}
+
+	@Override
+	public void onError( WebSocket webSocket, Throwable error ) {
+		if ( msgHandler != null )
+			msgHandler.handleError( error instanceof Exception ? ( Exception ) error : new Exception( error ) );
+		closed( -1, String.valueOf( error.getMessage() ), false );
+	}
+
+	/** Forgets the connection and schedules the next attempt */
+	private void closed( int code, String reason, boolean remote ) {
+		WebSocket w = ws;
+		ws = null;
+		metrics.stop();
+		if ( w != null )
+			w.abort();
+		if ( tracer.isInfo() )
+			tracer.event( "Closed with exit code " + code + " additional info: " + reason );
+		if ( msgHandler != null )
+			msgHandler.handleClose( code, reason, remote );
+		if ( shutdown )
+			return;
+		long delay = backoff.next();
+		if ( tracer.isInfo() )
+			tracer.event( "reconnecting in " + delay + " ms (attempt " + backoff.getAttempts() + ")" );
+		Backoff.schedule( () -> {
+			if ( !shutdown )
+				open();
+		}, delay );
+	}
+
+	private static synchronized HttpClient http() {
+		if ( http == null ) {
+			AtomicInteger n = new AtomicInteger();
+			http = HttpClient.newBuilder().executor( Executors.newFixedThreadPool( WORKERS, r -> {
+				Thread t = new Thread( r, "vesna-io-" + n.incrementAndGet() );
+				t.setDaemon( true );
+				return t;
+			} ) ).build();
+		}
+		return http;
+	}
+
+}
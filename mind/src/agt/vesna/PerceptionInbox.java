@@ -0,0 +1,357 @@
+package vesna;
+
+import jason.asSyntax.*;
+import jason.asSyntax.parser.ParseException;
+import jason.NoValueException;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * 	Bounded inbox between the WebSocket thread and the reasoning cycle of an agent.
+ * </p>
+ * <p>
+ * 	The WebSocket thread only {@link #offer(BodyMsg) offers} decoded messages, without locks;
+ * 	the reasoning cycle {@link #drain(Consumer) drains} them in bulk at the beginning of each cycle,
+ * 	so the belief base has a single writer.
+ * </p>
+ * <p>
+ * 	Each message type has its own lane with a load-shedding {@link Policy}, so that when the mind falls behind
+ * 	high-rate updates degrade gracefully while state transitions are kept.
+ * 	The policies are configured from the .jcm with:
+ * <pre>
+ * shedding: shedding( sight(coalesce), allies(keep_latest), navigation(never_drop) )
+ * </pre>
+ * 	and the types that are not listed use the {@link #DEFAULT_POLICIES defaults}.
+ * 	Messages are delivered in arrival order across all the lanes.
+ * </p>
+ * <p>
+ * 	The {@code never_drop} lanes are bounded too, at {@value #NEVER_DROP_FACTOR} times the capacity, so that a body flooding
+ * 	the state transitions can not grow the memory of the mind without limit. Past that bound they drop their oldest message after all:
+ * 	the WebSocket thread is shared and can not wait for a slow mind, so losing a transition is preferred to stalling every agent.
+ * 	Those losses are counted apart from the shedding ({@link #getOverflow()}) and the agent warns about them.
+ * </p>
+ * <p>
+ * 	The messages timestamped by the body can also be given a maximum age in milliseconds:
+ * <pre>
+ * max_age: max_age( sight(200), allies(1000) )
+ * </pre>
+ * 	older messages are discarded when drained, so a backlog is not replayed into the belief base.
+ * 	The types that are not listed, and the messages without a timestamp, never expire.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class PerceptionInbox {
+
+	/** Default number of messages a bounded lane can hold */
+	public static final int DEFAULT_CAPACITY = 256;
+	/** How many times the capacity a {@code never_drop} lane can hold before dropping anyway */
+	public static final int NEVER_DROP_FACTOR = 16;
+
+	/** What to do with the messages of a type when the mind falls behind */
+	public enum Policy {
+		/** Only the newest message of the type is kept */
+		KEEP_LATEST,
+		/** Messages are queued up to the capacity, then the oldest ones are dropped */
+		DROP_OLDEST,
+		/** Messages are always queued, up to a hard bound much larger than the capacity */
+		NEVER_DROP,
+		/** Only the newest message for each key is kept (see {@link BodyMsg#getKey()}) */
+		COALESCE
+	};
+
+	/** The policies used for the types not configured in the .jcm */
+	public static final Map<String, Policy> DEFAULT_POLICIES = Map.of(
+		"sight", Policy.COALESCE,
+		"allies", Policy.KEEP_LATEST,
+		"navigation", Policy.NEVER_DROP,
+		"signal", Policy.NEVER_DROP,
+		"event", Policy.NEVER_DROP
+	);
+
+	/** The policy of the types without a default */
+	private static final Policy FALLBACK_POLICY = Policy.DROP_OLDEST;
+
+	/** Orders the drained messages by arrival */
+	private static final Comparator<BodyMsg> BY_ARRIVAL = Comparator.comparingLong( BodyMsg::getSeq );
+
+	/** The policy for each type */
+	private final Map<String, Policy> policies = new HashMap<>( DEFAULT_POLICIES );
+	/** The lane of each type, created on the first message */
+	private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+	/** Gives the messages their arrival order */
+	private final AtomicLong sequence = new AtomicLong();
+	/** The number of queued messages */
+	private final AtomicInteger depth = new AtomicInteger();
+	/** The maximum depth reached */
+	private final AtomicInteger highWater = new AtomicInteger();
+	/** The number of messages dropped or replaced by newer ones */
+	private final AtomicLong shed = new AtomicLong();
+	/** The number of messages of the never_drop lanes dropped past their hard bound */
+	private final AtomicLong overflow = new AtomicLong();
+	/** The maximum age in milliseconds of each type that expires */
+	private final Map<String, Long> maxAges = new HashMap<>();
+	/** The number of messages discarded because too old */
+	private final AtomicLong stale = new AtomicLong();
+	/** The maximum number of messages in a bounded lane */
+	private final int capacity;
+	/** Reused by the reasoning cycle to merge the lanes */
+	private final ArrayList<BodyMsg> batch = new ArrayList<>();
+
+	public PerceptionInbox( int capacity, String shedding, String maxAge ) throws IllegalArgumentException {
+		if ( capacity <= 0 )
+			throw new IllegalArgumentException( "Inbox capacity must be positive, found: " + capacity );
+		this.capacity = capacity;
+
+		if ( maxAge != null ) {
+			try {
+				Literal maxAgeLit = parseLiteral( maxAge );
+				for ( Term term : maxAgeLit.getTerms() ) {
+					Literal typeAge = ( Literal ) term;
+					maxAges.put( typeAge.getFunctor(), ( long ) ( ( NumberTerm ) typeAge.getTerm( 0 ) ).solve() );
+				}
+			} catch ( ParseException pe ) {
+				throw new IllegalArgumentException( pe.getMessage() + " Maybe one of the ages is mispelled" );
+			} catch ( NoValueException | ClassCastException | IndexOutOfBoundsException e ) {
+				throw new IllegalArgumentException( "Ages should be written as type( milliseconds ), found: " + maxAge );
+			}
+		}
+
+		// No policies configured: keep the defaults
+		if ( shedding == null )
+			return;
+
+		try {
+			Literal sheddingLit = parseLiteral( shedding );
+			for ( Term term : sheddingLit.getTerms() ) {
+				Literal typePolicy = ( Literal ) term;
+				String policy = ( ( Literal ) typePolicy.getTerm( 0 ) ).getFunctor();
+				policies.put( typePolicy.getFunctor(), Policy.valueOf( policy.toUpperCase() ) );
+			}
+		} catch ( ParseException pe ) {
+			throw new IllegalArgumentException( pe.getMessage() + " Maybe one of the policies is mispelled" );
+		} catch ( ClassCastException | IndexOutOfBoundsException e ) {
+			throw new IllegalArgumentException( "Policies should be written as type( policy ), found: " + shedding );
+		} catch ( IllegalArgumentException iae ) {
+			throw new IllegalArgumentException( "Unknown shedding policy in: " + shedding + ". Use keep_latest, drop_oldest, never_drop or coalesce." );
+		}
+	}
+
+	/** Enqueues a message following the policy of its type; called by the WebSocket thread
+	 * @param msg The decoded message
+	 */
+	public void offer( BodyMsg msg ) {
+		msg.seq = sequence.incrementAndGet();
+		Lane lane = lanes.get( msg.getType() );
+		if ( lane == null )
+			lane = lanes.computeIfAbsent( msg.getType(), this::newLane );
+		lane.offer( msg );
+	}
+
+	/** Enqueues the messages of a body frame, in the order they were sent; called by the WebSocket thread
+	 * @param msgs The decoded messages
+	 */
+	public void offerAll( List<BodyMsg> msgs ) {
+		for ( int i = 0; i < msgs.size(); i++ )
+			offer( msgs.get( i ) );
+	}
+
+	/** Hands all the queued messages to the sink in arrival order; called by the reasoning cycle
+	 * <p>
+	 * Only the messages already queued when the drain starts are taken, so a busy socket cannot starve the cycle.
+	 * The messages older than the maximum age of their type are discarded.
+	 * </p>
+	 * @param sink The consumer of the messages
+	 * @return The number of messages handed to the sink
+	 */
+	public int drain( Consumer<BodyMsg> sink ) {
+		if ( depth.get() == 0 )
+			return 0;
+		for ( Lane lane : lanes.values() )
+			lane.drainTo( batch );
+		if ( batch.size() > 1 )
+			batch.sort( BY_ARRIVAL );
+		long now = maxAges.isEmpty() ? 0 : System.currentTimeMillis();
+		int drained = 0;
+		for ( int i = 0; i < batch.size(); i++ ) {
+			BodyMsg msg = batch.get( i );
+			if ( now != 0 && isStale( msg, now ) ) {
+				stale.incrementAndGet();
+				continue;
+			}
+			sink.accept( msg );
+			drained++;
+		}
+		batch.clear();
+		return drained;
+	}
+
+	private boolean isStale( BodyMsg msg, long now ) {
+		if ( msg.getTimestamp() == 0 )
+			return false;
+		Long maxAge = maxAges.get( msg.getType() );
+		return maxAge != null && now - msg.getTimestamp() > maxAge;
+	}
+
+	/** @return The number of queued messages */
+	public int getDepth() {
+		return depth.get();
+	}
+
+	/** @return The maximum number of queued messages observed */
+	public int getHighWater() {
+		return highWater.get();
+	}
+
+	/** @return The number of messages dropped or replaced by a newer one */
+	public long getShed() {
+		return shed.get();
+	}
+
+	/** @return The number of messages of the {@code never_drop} types dropped because their lane was past its hard bound */
+	public long getOverflow() {
+		return overflow.get();
+	}
+
+	/** @return The number of messages discarded because older than their maximum age */
+	public long getStale() {
+		return stale.get();
+	}
+
+	/** @return The maximum number of messages in a bounded lane */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @param type A message type
+	 * @return The policy used for that type
+	 */
+	public Policy getPolicy( String type ) {
+		return policies.getOrDefault( type, FALLBACK_POLICY );
+	}
+
+	/****************************************/
+	/* LANES                                */
+	/****************************************/
+
+	private Lane newLane( String type ) {
+		switch ( getPolicy( type ) ) {
+			case KEEP_LATEST:
+				return new LatestLane();
+			case COALESCE:
+				return new CoalescingLane();
+			case NEVER_DROP:
+				return new QueueLane( capacity * NEVER_DROP_FACTOR, overflow );
+			default:
+				return new QueueLane( capacity, shed );
+		}
+	}
+
+	private void queued() {
+		highWater.accumulateAndGet( depth.incrementAndGet(), Math::max );
+	}
+
+	/** The messages of a single type */
+	private abstract class Lane {
+		abstract void offer( BodyMsg msg );
+		abstract void drainTo( ArrayList<BodyMsg> out );
+	}
+
+	/** FIFO lane, bounded dropping the oldest message */
+	private final class QueueLane extends Lane {
+
+		private final ConcurrentLinkedQueue<BodyMsg> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger count = new AtomicInteger();
+		private final int limit;
+		/** Where the dropped messages are counted */
+		private final AtomicLong dropped;
+
+		QueueLane( int limit, AtomicLong dropped ) {
+			this.limit = limit;
+			this.dropped = dropped;
+		}
+
+		@Override
+		void offer( BodyMsg msg ) {
+			queue.offer( msg );
+			queued();
+			if ( count.incrementAndGet() > limit && queue.poll() != null ) {
+				count.decrementAndGet();
+				depth.decrementAndGet();
+				dropped.incrementAndGet();
+			}
+		}
+
+		@Override
+		void drainTo( ArrayList<BodyMsg> out ) {
+			int n = count.get();
+			BodyMsg msg;
+			while ( n-- > 0 && ( msg = queue.poll() ) != null ) {
+				count.decrementAndGet();
+				depth.decrementAndGet();
+				out.add( msg );
+			}
+		}
+	}
+
+	/** Lane holding only the newest message */
+	private final class LatestLane extends Lane {
+
+		private final AtomicReference<BodyMsg> latest = new AtomicReference<>();
+
+		@Override
+		void offer( BodyMsg msg ) {
+			if ( latest.getAndSet( msg ) == null )
+				queued();
+			else
+				shed.incrementAndGet();
+		}
+
+		@Override
+		void drainTo( ArrayList<BodyMsg> out ) {
+			BodyMsg msg = latest.getAndSet( null );
+			if ( msg != null ) {
+				depth.decrementAndGet();
+				out.add( msg );
+			}
+		}
+	}
+
+	/** Lane holding the newest message for each key */
+	private final class CoalescingLane extends Lane {
+
+		private final ConcurrentHashMap<Literal, BodyMsg> pending = new ConcurrentHashMap<>();
+
+		@Override
+		void offer( BodyMsg msg ) {
+			if ( pending.put( msg.getKey(), msg ) == null )
+				queued();
+			else
+				shed.incrementAndGet();
+		}
+
+		@Override
+		void drainTo( ArrayList<BodyMsg> out ) {
+			for ( Literal key : pending.keySet() ) {
+				BodyMsg msg = pending.remove( key );
+				if ( msg != null ) {
+					depth.decrementAndGet();
+					out.add( msg );
+				}
+			}
+		}
+	}
+
+}
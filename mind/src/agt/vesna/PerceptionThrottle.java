@@ -0,0 +1,116 @@
+package vesna;
+
+import jason.asSyntax.*;
+import jason.asSyntax.parser.ParseException;
+import jason.NoValueException;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 	Decides when a new position of a slotted belief is worth a belief event.
+ * </p>
+ * <p>
+ * 	For the configured functors a new value whose last argument is {@code pos( X, Y )} produces an event only if
+ * 	at least the minimum interval has passed <b>and</b> the object moved at least the minimum distance
+ * 	since the last value that produced one; otherwise the belief is updated silently,
+ * 	so the latest position is always in the belief base but the plans are not triggered again.
+ * 	The state is kept for each object, i.e. for each key of the belief (all the arguments but the position).
+ * 	It is configured from the .jcm with:
+ * <pre>
+ * throttle: throttle( sight( 100, 8 ) )
+ * </pre>
+ * 	where the first number is the minimum interval in milliseconds and the second the minimum displacement.
+ * 	The throttled functors should be slotted too (see {@link BeliefSlots}).
+ * </p>
+ * @author Andrea Gatti
+ */
+public class PerceptionThrottle {
+
+	/** The minimum interval in milliseconds and minimum displacement for each throttled functor */
+	private final Map<String, double[]> limits = new HashMap<>();
+	/** The last value of each object that produced an event: time, x, y */
+	private final Map<Literal, double[]> emitted = new HashMap<>();
+
+	public PerceptionThrottle( String config ) throws IllegalArgumentException {
+
+		// No throttle configured: every change produces an event
+		if ( config == null )
+			return;
+
+		try {
+			Literal throttleLit = parseLiteral( config );
+			for ( Term term : throttleLit.getTerms() ) {
+				Literal limit = ( Literal ) term;
+				double interval = ( ( NumberTerm ) limit.getTerm( 0 ) ).solve();
+				double distance = ( ( NumberTerm ) limit.getTerm( 1 ) ).solve();
+				if ( interval < 0 || distance < 0 )
+					throw new IllegalArgumentException( "Throttle limits must not be negative, found: " + limit );
+				limits.put( limit.getFunctor(), new double[]{ interval, distance } );
+			}
+		} catch ( ParseException pe ) {
+			throw new IllegalArgumentException( pe.getMessage() + " Maybe one of the throttles is mispelled" );
+		} catch ( NoValueException | ClassCastException | IndexOutOfBoundsException e ) {
+			throw new IllegalArgumentException( "Throttles should be written as functor( interval, distance ), found: " + config );
+		}
+	}
+
+	/** @param belief A belief
+	 * @return true if its functor is throttled
+	 */
+	public boolean isThrottled( Literal belief ) {
+		return !limits.isEmpty() && limits.containsKey( belief.getFunctor() );
+	}
+
+	/** Checks if a new value of a belief would only repeat the last event
+	 * <p>
+	 * If it is not redundant it becomes the reference value for the next checks.
+	 * </p>
+	 * @param belief The new value of the belief
+	 * @param now The current time in milliseconds
+	 * @return true if the belief should be updated without producing an event
+	 */
+	public boolean isRedundant( Literal belief, long now ) {
+		double[] limit = limits.get( belief.getFunctor() );
+		if ( limit == null || belief.getArity() == 0 )
+			return false;
+		Term last = belief.getTerm( belief.getArity() - 1 );
+		if ( !( last instanceof Literal ) || !( ( Literal ) last ).getFunctor().equals( "pos" ) || ( ( Literal ) last ).getArity() != 2 )
+			return false;
+		double x, y;
+		try {
+			x = ( ( NumberTerm ) ( ( Literal ) last ).getTerm( 0 ) ).solve();
+			y = ( ( NumberTerm ) ( ( Literal ) last ).getTerm( 1 ) ).solve();
+		} catch ( NoValueException | ClassCastException e ) {
+			return false;
+		}
+
+		Literal key = BodyMsg.keyOf( belief, -1 );
+		double[] previous = emitted.get( key );
+		if ( previous != null ) {
+			double dx = x - previous[ 1 ];
+			double dy = y - previous[ 2 ];
+			if ( now - previous[ 0 ] < limit[ 0 ] || dx * dx + dy * dy < limit[ 1 ] * limit[ 1 ] )
+				return true;
+		} else {
+			previous = new double[ 3 ];
+			emitted.put( key, previous );
+		}
+		previous[ 0 ] = now;
+		previous[ 1 ] = x;
+		previous[ 2 ] = y;
+		return false;
+	}
+
+	/** Forgets an object, so that its next value produces an event
+	 * @param belief A value of the belief of the object
+	 */
+	public void forget( Literal belief ) {
+		if ( !emitted.isEmpty() )
+			emitted.remove( BodyMsg.keyOf( belief, -1 ) );
+	}
+
+}
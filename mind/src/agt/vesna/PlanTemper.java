@@ -0,0 +1,67 @@
+package vesna;
+
+import jason.NoValueException;
+
+/**
+ * <p>
+ * 	The {@code temper} and {@code effects} annotations of a plan, compiled against the traits of an agent.
+ * </p>
+ * <p>
+ * 	The traits are stored by their id in the {@link TraitRegistry} of the agent, with their values,
+ * 	so that weighting the plan is a loop over two arrays; the traits the agent does not have are left out.
+ * 	A plan with a malformed annotation keeps the error, raised when the plan is weighted or its effects applied,
+ * 	as if the annotation were read at that moment.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class PlanTemper {
+
+    /** A plan without annotations */
+    public static final PlanTemper NONE = new PlanTemper( false, new int[ 0 ], new double[ 0 ], new int[ 0 ], new double[ 0 ], null, null );
+
+    /** True if the plan has the {@code temper} annotation */
+    final boolean hasTemper;
+    /** The ids of the traits of the {@code temper} annotation and their values */
+    final int[] traits;
+    final double[] values;
+    /** The ids of the mood traits of the {@code effects} annotation and their values */
+    final int[] effects;
+    final double[] deltas;
+    /** The error in the {@code temper} annotation, null if none */
+    private final Exception temperError;
+    /** The error in the {@code effects} annotation, null if none */
+    private final Exception effectsError;
+
+    PlanTemper( boolean hasTemper, int[] traits, double[] values, int[] effects, double[] deltas, Exception temperError, Exception effectsError ) {
+        this.hasTemper = hasTemper;
+        this.traits = traits;
+        this.values = values;
+        this.effects = effects;
+        this.deltas = deltas;
+        this.temperError = temperError;
+        this.effectsError = effectsError;
+    }
+
+    /** @return true if the plan has the {@code temper} annotation */
+    public boolean hasTemper() {
+        return hasTemper;
+    }
+
+    /** Raises the error of the {@code temper} annotation, if any */
+    void checkTemper() throws NoValueException {
+        rethrow( temperError );
+    }
+
+    /** Raises the error of the {@code effects} annotation, if any */
+    void checkEffects() throws NoValueException {
+        rethrow( effectsError );
+    }
+
+    private static void rethrow( Exception error ) throws NoValueException {
+        if ( error instanceof NoValueException )
+            throw ( NoValueException ) error;
+        if ( error != null )
+            throw ( RuntimeException ) error;
+    }
+
+}
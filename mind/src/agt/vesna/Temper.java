@@ -1,10 +1,10 @@
 package vesna;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.function.Function;
 
 import static jason.asSyntax.ASSyntax.*;
 import jason.asSyntax.*;
@@ -24,20 +24,42 @@ import jason.NoValueException;
  * <li> <b>Most similar:</b> deterministic, it chooses always the plan with personality and mood more similar to the current ones;
  * <li> <b>Random:</b> undeterministic, it chooses with a weighted random based on the similarity between the plan annotations and the current temper.
  * </ul>
+ * The {@code temper} and {@code effects} annotations of the plans are compiled once into a {@link PlanTemper},
+ * so that a selection does not read the annotations again; personality and mood are arrays indexed by the same trait ids.
+ * Every change of the mood publishes a {@link MoodSnapshot} for the other threads,
+ * and the most similar strategy reuses its last choices among the same plans until the mood changes.
  */
 public class Temper {
 
     /** Decision Strategy is an enumerable between most similar and random */
     private enum DecisionStrategy { MOST_SIMILAR, RANDOM };
 
-    /** Personality is the persistent part of the agent temper */
-    private Map<String, Double> personality;
-    /** Mood is the mutable part of the agent temper */
-    private Map<String, Double> mood;
+    /** Personality is the persistent part of the agent temper, by trait id */
+    private final double[] personality;
+    private final boolean[] inPersonality;
+    /** Mood is the mutable part of the agent temper, by trait id; only the reasoning cycle changes it */
+    private final double[] mood;
+    private final boolean[] inMood;
+    /** The value of each trait seen by the plans: its mood if it has one, its personality otherwise */
+    private final double[] temper;
+    /** The number of changes of the mood */
+    private long moodVersion;
+    /** The mood as of its last change, for the other threads */
+    private volatile MoodSnapshot moodSnapshot;
     /** The agent decision strategy */
     private DecisionStrategy strategy;
     /** A dice necessary to generate random numbers */
-    private Random dice = new Random();
+    private WeightedDice dice = new WeightedDice();
+    /** The ids of the traits of personality and mood */
+    private final TraitRegistry traits = new TraitRegistry();
+    /** The annotations of the plans compiled against the traits, by label */
+    private final Map<String, PlanTemper> plans = new HashMap<>();
+    /** Scratch arrays of select, reused across the calls */
+    private double[] weights = new double[ 8 ];
+    private int[] indices = new int[ 8 ];
+    private PlanTemper[] tempers = new PlanTemper[ 8 ];
+    /** The last choices of the most similar strategy, valid until the mood changes */
+    private final DecisionCache decisions = new DecisionCache();
 
     public Temper( String temper, String strategy ) throws IllegalArgumentException {
 
@@ -45,25 +67,23 @@ public class Temper {
         if ( temper == null )
             throw new IllegalArgumentException( "Temper cannot be null" );
 
-        // Initialize the new personality
-        personality = new HashMap<>();
-        mood = new HashMap<>();
-
+        // Give an id to each trait, then store the values by id
+        Map<String, Double> personalityValues = new HashMap<>();
+        Map<String, Double> moodValues = new HashMap<>();
         try {
-            // Load the personality into the Map
             Literal listLit = parseLiteral( temper );
             for ( Term term : listLit.getTerms() ) {
                 Literal trait = ( Literal ) term;
                 double value = ( double ) ( ( NumberTerm ) trait.getTerm( 0 ) ).solve();
-                if ( trait.hasAnnot( createLiteral( "mood" ) ) ) {
+                traits.register( trait.getFunctor() );
+                if ( trait.hasAnnot( TermCache.atom( "mood" ) ) ) {
                     if ( value < -1.0 || value > 1.0 )
                         throw new IllegalArgumentException( "Trait value for mood must be between -1 and 1, found:" + trait );
-                    mood.put( trait.getFunctor().toString(), value );
-                    continue;
+                    moodValues.put( trait.getFunctor(), value );
                 } else {
                     if ( value < 0.0 || value > 1.0 )
                         throw new IllegalArgumentException( "Trait value for personality must be between 0 and 1, found:" + trait );
-                    personality.put( trait.getFunctor().toString(), value );
+                    personalityValues.put( trait.getFunctor(), value );
                 }
             }
         } catch ( ParseException pe ) {
@@ -72,6 +92,23 @@ public class Temper {
             throw new IllegalArgumentException( nve.getMessage() + " Maybe one of the terms is mispelled and does not contain a number" );
         }
 
+        int n = traits.size();
+        personality = new double[ n ];
+        inPersonality = new boolean[ n ];
+        mood = new double[ n ];
+        inMood = new boolean[ n ];
+        this.temper = new double[ n ];
+        for ( int id = 0; id < n; id++ ) {
+            Double p = personalityValues.get( traits.name( id ) );
+            Double m = moodValues.get( traits.name( id ) );
+            inPersonality[ id ] = p != null;
+            personality[ id ] = p != null ? p : 0.0;
+            inMood[ id ] = m != null;
+            mood[ id ] = m != null ? m : 0.0;
+            this.temper[ id ] = m != null ? m : personality[ id ];
+        }
+        moodSnapshot = new MoodSnapshot( traits, mood, inMood, 0 );
+
         // Load the strategy
         if ( strategy == null )
             this.strategy = DecisionStrategy.MOST_SIMILAR;
@@ -83,113 +120,226 @@ public class Temper {
             throw new IllegalArgumentException( "Decision Strategy Unknown: " + strategy );
     }
 
+    /** Selects one of the choices with the strategy of the agent, applying the effects of the chosen one
+     * @param choices The options or intentions to choose from
+     * @return The chosen one
+     * @see #select(List, Function)
+     */
     public <T extends TemperSelectable> T select( List<T> choices ) throws NoValueException {
-        List<Double> weights = new ArrayList<>();
-
-        for ( T choice : choices ) {
+        return choices.get( select( choices, TemperSelectable::getLabel ) );
+    }
 
-            double choiceWeight = 0;
-            Pred label = choice.getLabel();
+    /** Selects one of the choices with the strategy of the agent, applying the effects of the chosen one
+     * <p>
+     * Only the choices with a {@code temper} annotation are weighted; the others are chosen only if none has it.
+     * </p>
+     * @param choices The options or intentions to choose from
+     * @param labelOf Gives the label of the plan of a choice
+     * @return The index of the chosen one
+     */
+    public <T> int select( List<T> choices, Function<? super T, Pred> labelOf ) throws NoValueException {
+        int n = choices.size();
+        int chosen = decide( choices, labelOf );
+        PlanTemper plan = tempers[ chosen ];
+        Arrays.fill( tempers, 0, n, null );
+        updateDynTemper( plan );
+        return chosen;
+    }
 
-            Literal temperAnnot = label.getAnnot( "temper" );
-            if ( temperAnnot == null )
-                continue;
+    /** Prefers one of the choices with the strategy of the agent, without applying the effects of the chosen one
+     * <p>
+     * The effects belong to the adoption of a plan: this is for the choices among plans already adopted,
+     * like the next intention to run, which must not change the mood again at every step.
+     * </p>
+     * @param choices The options or intentions to choose from
+     * @param labelOf Gives the label of the plan of a choice
+     * @return The index of the preferred one
+     * @see #select(List, Function)
+     */
+    public <T> int prefer( List<T> choices, Function<? super T, Pred> labelOf ) throws NoValueException {
+        int chosen = decide( choices, labelOf );
+        Arrays.fill( tempers, 0, choices.size(), null );
+        return chosen;
+    }
 
-            ListTerm choiceTemper = ( ListTerm ) temperAnnot.getTerm( 0 );
-            for ( Term traitTerm : choiceTemper ) {
-                Atom trait = ( Atom ) traitTerm;
-                if ( ! mood.keySet().contains( trait.getFunctor().toString() ) && ! personality.keySet().contains( trait.getFunctor().toString() ) )
-                    continue;
-                double traitTemper;
-                if ( mood.keySet().contains( trait.getFunctor().toString() ) )
-                    traitTemper = mood.get( trait.getFunctor().toString() );
-                else
-                    traitTemper = personality.get( trait.getFunctor().toString() );
-                try {
-                    double traitValue = ( double ) ( (NumberTerm ) trait.getTerm( 0 ) ).solve();
-                    if ( traitValue < -1.0 || traitValue > 1.0 )
-                        throw new IllegalArgumentException("Trait value out of range, found: " + trait + ". The value should be inside [0, 1].");
-                    if ( strategy == DecisionStrategy.RANDOM )
-                        choiceWeight += traitTemper * traitValue;
-                    else if ( strategy == DecisionStrategy.MOST_SIMILAR )
-                        choiceWeight += Math.abs( traitTemper - traitValue );
-                } catch ( NoValueException nve ) {
-                    throw new NoValueException( "One of the plans has a mispelled annotation" );
-                }
-            }
-            weights.add( choiceWeight );
+    /** Weighs the choices and picks one, leaving their compiled annotations in {@code tempers} */
+    private <T> int decide( List<T> choices, Function<? super T, Pred> labelOf ) throws NoValueException {
+        int n = choices.size();
+        if ( weights.length < n ) {
+            weights = new double[ n ];
+            indices = new int[ n ];
+            tempers = new PlanTemper[ n ];
         }
 
-        T chosen = null;
-        if ( strategy == DecisionStrategy.RANDOM )
-            chosen = choices.get( getWeightedRandomIdx( weights ) );
-        else if ( strategy == DecisionStrategy.MOST_SIMILAR )
-            chosen = choices.get( getMostSimilarIdx( weights ) );
-        if ( chosen == null )
-            chosen = choices.get( 0 );
+        for ( int i = 0; i < n; i++ )
+            tempers[ i ] = of( labelOf.apply( choices.get( i ) ) );
 
-        Literal effectList = chosen.getLabel().getAnnot( "effects" );
-        if ( effectList != null )
-            updateDynTemper( effectList );
+        // The most similar choice among the same plans with the same mood does not change
+        int hash = 0;
+        if ( strategy == DecisionStrategy.MOST_SIMILAR ) {
+            hash = DecisionCache.hash( tempers, n );
+            int chosen = decisions.get( tempers, n, hash, moodVersion );
+            if ( chosen >= 0 )
+                return chosen;
+        }
 
-        return chosen;
-    }
+        int count = 0;
+        for ( int i = 0; i < n; i++ ) {
+            PlanTemper plan = tempers[ i ];
+            if ( !plan.hasTemper )
+                continue;
+            plan.checkTemper();
+            double choiceWeight = 0;
+            for ( int t = 0; t < plan.traits.length; t++ ) {
+                double traitTemper = temper[ plan.traits[ t ] ];
+                if ( strategy == DecisionStrategy.RANDOM )
+                    choiceWeight += traitTemper * plan.values[ t ];
+                else
+                    choiceWeight += Math.abs( traitTemper - plan.values[ t ] );
+            }
+            weights[ count ] = choiceWeight;
+            indices[ count++ ] = i;
+        }
 
-    private int getWeightedRandomIdx( List<Double> weights ) {
-        // double sum = weights.stream().reduce( 0.0, Double::sum );
-        double min_bound = 0.0;
-        double max_bound = 0.0;
-        for ( double weight : weights ) {
-            if ( weight < 0.0 )
-                min_bound += weight;
+        int chosen = 0;
+        if ( count > 0 ) {
+            if ( strategy == DecisionStrategy.RANDOM )
+                chosen = indices[ dice.roll( weights, count ) ];
             else
-                max_bound += weight;
-        }
-        double roll = dice.nextDouble( min_bound, max_bound );
-        int currentMin = 0;
-        for ( int i = 0; i < weights.size(); i++ ) {
-            if ( roll > currentMin && roll < weights.get( i ) + currentMin )
-                return i;
-            currentMin += weights.get( i );
+                chosen = indices[ getMostSimilarIdx( weights, count ) ];
         }
-        return 0;
+        if ( strategy == DecisionStrategy.MOST_SIMILAR )
+            decisions.put( tempers, n, hash, moodVersion, chosen );
+        return chosen;
     }
 
-    private int getMostSimilarIdx( List<Double> weights ) {
+    private int getMostSimilarIdx( double[] weights, int count ) {
         double min = Double.MAX_VALUE;
-        int minIdx = -1;
-        for ( int i = 0; i < weights.size(); i++ ) {
-            if ( weights.get( i ) < min ) {
-                min = weights.get( i );
+        int minIdx = 0;
+        for ( int i = 0; i < count; i++ ) {
+            if ( weights[ i ] < min ) {
+                min = weights[ i ];
                 minIdx = i;
             }
         }
         return minIdx;
     }
 
-    private void updateDynTemper( Literal effectList ) throws NoValueException {
-        ListTerm effects = ( ListTerm ) effectList.getTerm( 0 );
-        for ( Term effectTerm : effects ) {
-            Literal effect = ( Literal ) effectTerm;
-            if ( personality.keySet().contains( effect.getFunctor().toString() ) && !effect.hasAnnot( createLiteral( "mood" ) ) )
-                throw new IllegalArgumentException( "You used a Personality trait in the post-effects! Use only mood traits. In case of ambigous name use the annotation [mood]." );
-            if ( mood.get( effect.getFunctor().toString() ) == null )
-                continue;
-            double moodValue = mood.get( effect.getFunctor().toString() );
+    private void updateDynTemper( PlanTemper plan ) throws NoValueException {
+        plan.checkEffects();
+        if ( plan.effects.length == 0 )
+            return;
+        for ( int e = 0; e < plan.effects.length; e++ ) {
+            int trait = plan.effects[ e ];
+            mood[ trait ] = Math.max( -1.0, Math.min( 1.0, mood[ trait ] + plan.deltas[ e ] ) );
+            temper[ trait ] = mood[ trait ];
+        }
+        moodSnapshot = new MoodSnapshot( traits, mood, inMood, ++moodVersion );
+    }
+
+    /** @return The mood as of its last change; it can be read from any thread */
+    public MoodSnapshot getMood() {
+        return moodSnapshot;
+    }
+
+    /****************************************/
+    /* PLAN COMPILATION                     */
+    /****************************************/
+
+    /** Compiles the annotations of all the plans of a library, e.g. once it is loaded
+     * @param pl The plan library of the agent
+     */
+    public void compile( PlanLibrary pl ) {
+        for ( Plan plan : pl )
+            if ( plan.getLabel() != null )
+                plans.put( plan.getLabel().getFunctor(), compile( plan.getLabel() ) );
+    }
+
+    /** Gets the compiled annotations of a plan, compiling them if the plan was added after the library was compiled
+     * <p>
+     * The plans are known by their label, which is unique in the plan library and kept by the copies of the plan in the intentions.
+     * </p>
+     * @param label The label of the plan
+     * @return Its compiled annotations
+     */
+    public PlanTemper of( Pred label ) {
+        if ( label == null )
+            return PlanTemper.NONE;
+        PlanTemper plan = plans.get( label.getFunctor() );
+        if ( plan == null ) {
+            plan = compile( label );
+            plans.put( label.getFunctor(), plan );
+        }
+        return plan;
+    }
+
+    private PlanTemper compile( Pred label ) {
+        Literal temperAnnot = label.getAnnot( "temper" );
+        Literal effectList = label.getAnnot( "effects" );
+        if ( temperAnnot == null && effectList == null )
+            return PlanTemper.NONE;
+
+        int[] ids = new int[ 0 ];
+        double[] values = new double[ 0 ];
+        Exception temperError = null;
+        if ( temperAnnot != null ) {
             try {
-                double effectValue = ( double ) ( ( NumberTerm ) effect.getTerm( 0 ) ).solve();
-                if ( effectValue < - 1.0 || effectValue > 1.0 )
-                    throw new IllegalArgumentException("Effect value out of range: " + effectValue + ". It should be between [-100,100].");
-                if ( moodValue + effectValue > 1.0 )
-                    mood.put( effect.getFunctor().toString(), 1.0 );
-                else if ( moodValue + effectValue < -1.0 )
-                    mood.put( effect.getFunctor().toString(), 0.0 );
-                else
-                    mood.put( effect.getFunctor().toString(), moodValue + effectValue );
+                ListTerm choiceTemper = ( ListTerm ) temperAnnot.getTerm( 0 );
+                ids = new int[ choiceTemper.size() ];
+                values = new double[ choiceTemper.size() ];
+                int count = 0;
+                for ( Term traitTerm : choiceTemper ) {
+                    Atom trait = ( Atom ) traitTerm;
+                    int id = traits.id( trait.getFunctor() );
+                    if ( id < 0 )
+                        continue;
+                    double traitValue = ( ( NumberTerm ) trait.getTerm( 0 ) ).solve();
+                    if ( traitValue < -1.0 || traitValue > 1.0 )
+                        throw new IllegalArgumentException("Trait value out of range, found: " + trait + ". The value should be inside [0, 1].");
+                    ids[ count ] = id;
+                    values[ count++ ] = traitValue;
+                }
+                ids = Arrays.copyOf( ids, count );
+                values = Arrays.copyOf( values, count );
+            } catch ( NoValueException nve ) {
+                temperError = new NoValueException( "One of the plans has a mispelled annotation" );
+            } catch ( RuntimeException re ) {
+                temperError = re;
+            }
+        }
+
+        int[] effects = new int[ 0 ];
+        double[] deltas = new double[ 0 ];
+        Exception effectsError = null;
+        if ( effectList != null ) {
+            try {
+                ListTerm effectTerms = ( ListTerm ) effectList.getTerm( 0 );
+                effects = new int[ effectTerms.size() ];
+                deltas = new double[ effectTerms.size() ];
+                int count = 0;
+                for ( Term effectTerm : effectTerms ) {
+                    Literal effect = ( Literal ) effectTerm;
+                    int id = traits.id( effect.getFunctor() );
+                    if ( id >= 0 && inPersonality[ id ] && !effect.hasAnnot( TermCache.atom( "mood" ) ) )
+                        throw new IllegalArgumentException( "You used a Personality trait in the post-effects! Use only mood traits. In case of ambigous name use the annotation [mood]." );
+                    if ( id < 0 || !inMood[ id ] )
+                        continue;
+                    double effectValue = ( ( NumberTerm ) effect.getTerm( 0 ) ).solve();
+                    if ( effectValue < - 1.0 || effectValue > 1.0 )
+                        throw new IllegalArgumentException("Effect value out of range: " + effectValue + ". It should be between [-100,100].");
+                    effects[ count ] = id;
+                    deltas[ count++ ] = effectValue;
+                }
+                effects = Arrays.copyOf( effects, count );
+                deltas = Arrays.copyOf( deltas, count );
             } catch ( NoValueException nve ) {
-                throw new NoValueException( "One of the plans has a mispelled annotation" );
+                effectsError = new NoValueException( "One of the plans has a mispelled annotation" );
+            } catch ( RuntimeException re ) {
+                effectsError = re;
             }
         }
+
+        return new PlanTemper( temperAnnot != null, ids, values, effects, deltas, temperError, effectsError );
     }
 
 }
@@ -0,0 +1,70 @@
+package vesna;
+
+import jason.asSyntax.*;
+import jason.asSyntax.parser.ParseException;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * 	Shared intern cache for the terms built over and over from the same small vocabulary:
+ * 	statuses, reasons, waypoint and ally names and the fixed literals used by the internal actions.
+ * </p>
+ * <p>
+ * 	Interned terms are shared by all the agents and threads, so they must never be modified
+ * 	(e.g. annotated): use them as arguments of the perceptions or as query patterns, not as beliefs themselves.
+ * 	The cache is bounded: once full, new terms are simply created without being cached.
+ * </p>
+ * @author Andrea Gatti
+ */
+public final class TermCache {
+
+	/** Maximum number of terms kept by each cache */
+	public static final int MAX_SIZE = 4096;
+
+	private static final ConcurrentHashMap<String, Atom> atoms = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Literal> literals = new ConcurrentHashMap<>();
+
+	private TermCache() {}
+
+	/** @param name The name of the atom
+	 * @return The shared atom with that name
+	 */
+	public static Atom atom( String name ) {
+		Atom atom = atoms.get( name );
+		if ( atom != null )
+			return atom;
+		atom = createAtom( name );
+		if ( atoms.size() >= MAX_SIZE )
+			return atom;
+		Atom previous = atoms.putIfAbsent( name, atom );
+		return previous == null ? atom : previous;
+	}
+
+	/** @param text A small literal written in Jason syntax, e.g. {@code propensions( Ps )}
+	 * @return The shared literal parsed from the text
+	 * @throws IllegalArgumentException if the text is not a literal
+	 */
+	public static Literal literal( String text ) throws IllegalArgumentException {
+		Literal literal = literals.get( text );
+		if ( literal != null )
+			return literal;
+		try {
+			literal = parseLiteral( text );
+		} catch ( ParseException pe ) {
+			throw new IllegalArgumentException( pe.getMessage() + " Cannot parse literal: " + text );
+		}
+		if ( literals.size() >= MAX_SIZE )
+			return literal;
+		Literal previous = literals.putIfAbsent( text, literal );
+		return previous == null ? literal : previous;
+	}
+
+	/** @return The number of cached terms */
+	public static int size() {
+		return atoms.size() + literals.size();
+	}
+
+}
@@ -0,0 +1,364 @@
+package vesna;
+
+import jason.asSyntax.*;
+import jason.asSyntax.parser.ParseException;
+import jason.NoValueException;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * 	Message tracing for an agent that stays off the hot path.
+ * </p>
+ * <p>
+ * 	The traced messages are only stored in a preallocated ring buffer, as the text or the bytes they had when traced,
+ * 	since the reasoning cycle keeps annotating the perceptions afterwards;
+ * 	a single background thread shared by all the agents formats the entries and writes them to the logger of each agent.
+ * 	When the trace is disabled every call costs a field check.
+ * 	The ring also keeps the history of the agent, so that the last messages can be {@link #dump() dumped} when it dies.
+ * </p>
+ * <p>
+ * 	It is configured for each agent from the .jcm with:
+ * <pre>
+ * trace: trace( debug, [ sight, navigation ], 128 )
+ * </pre>
+ * 	where the level is {@code off}, {@code info} (connection events only) or {@code debug} (messages too),
+ * 	the optional list restricts the messages to some types (all of them if missing or empty)
+ * 	and the optional number is the size of the history (default {@value #DEFAULT_HISTORY}).
+ * </p>
+ * @author Andrea Gatti
+ */
+public class Tracer {
+
+	/** What is traced */
+	public enum Level { OFF, INFO, DEBUG };
+
+	/** Default number of entries kept in the ring */
+	public static final int DEFAULT_HISTORY = 64;
+	/** Milliseconds between two drains of the background thread */
+	private static final long DRAIN_PERIOD = 100;
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern( "HH:mm:ss.SSS" );
+
+	/** Direction of an entry */
+	public static final char IN = '<', OUT = '>', EVENT = '-';
+
+	/** The tracers being drained */
+	private static final List<Tracer> active = new CopyOnWriteArrayList<>();
+	/** The background thread, started with the first active tracer */
+	private static ScheduledExecutorService drainer;
+	/** A tracer that traces nothing */
+	public static final Tracer OFF = new Tracer( "", Level.OFF, null, 1, null );
+
+	private final String agName;
+	/** Where the entries are written */
+	private final Logger logger;
+	/** True if connection events are traced */
+	private final boolean info;
+	/** True if messages are traced */
+	private final boolean debug;
+	/** The traced message types, null for all */
+	private final Set<String> types;
+
+	/** The ring: an entry is readable when its slot in {@link #published} holds its sequence number */
+	private final int mask;
+	private final long[] times;
+	private final char[] dirs;
+	private final String[] kinds;
+	private final Object[] payloads;
+	private final AtomicLongArray published;
+	/** Next sequence number to write */
+	private final AtomicLong head = new AtomicLong();
+	/** Next sequence number to print, only touched by the background thread */
+	private long tail;
+	/** Number of entries overwritten before being printed */
+	private long lost;
+
+	/**
+	 * @param agName The name of the traced agent
+	 * @param config The configuration from the .jcm, null to trace nothing
+	 * @param logger Where the entries are written, e.g. the logger of the agent
+	 */
+	public Tracer( String agName, String config, Logger logger ) throws IllegalArgumentException {
+		this( agName, level( config ), types( config ), history( config ), logger );
+	}
+
+	private Tracer( String agName, Level level, Set<String> types, int history, Logger logger ) {
+		this.agName = agName;
+		this.logger = logger;
+		this.info = level != Level.OFF;
+		this.debug = level == Level.DEBUG;
+		this.types = types;
+
+		int capacity = Integer.highestOneBit( Math.max( history, 1 ) - 1 ) << 1;
+		capacity = Math.max( capacity, 1 );
+		mask = capacity - 1;
+		times = new long[ capacity ];
+		dirs = new char[ capacity ];
+		kinds = new String[ capacity ];
+		payloads = new Object[ capacity ];
+		published = new AtomicLongArray( capacity );
+		for ( int i = 0; i < capacity; i++ )
+			published.set( i, -1 );
+
+		if ( info )
+			start( this );
+	}
+
+	/****************************************/
+	/* CONFIGURATION                        */
+	/****************************************/
+
+	private static Literal parse( String config ) throws IllegalArgumentException {
+		try {
+			return parseLiteral( config );
+		} catch ( ParseException pe ) {
+			throw new IllegalArgumentException( pe.getMessage() + " The trace should be written as trace( level, [ types ], history )" );
+		}
+	}
+
+	private static Level level( String config ) throws IllegalArgumentException {
+		if ( config == null )
+			return Level.OFF;
+		Literal traceLit = parse( config );
+		try {
+			return Level.valueOf( ( ( Literal ) traceLit.getTerm( 0 ) ).getFunctor().toUpperCase() );
+		} catch ( ClassCastException | IndexOutOfBoundsException | IllegalArgumentException e ) {
+			throw new IllegalArgumentException( "Unknown trace level in: " + config + ". Use off, info or debug." );
+		}
+	}
+
+	private static Set<String> types( String config ) throws IllegalArgumentException {
+		if ( config == null )
+			return null;
+		Literal traceLit = parse( config );
+		if ( traceLit.getArity() < 2 || !traceLit.getTerm( 1 ).isList() || ( ( ListTerm ) traceLit.getTerm( 1 ) ).isEmpty() )
+			return null;
+		Set<String> types = new HashSet<>();
+		for ( Term type : ( ListTerm ) traceLit.getTerm( 1 ) )
+			types.add( type.isString() ? ( ( StringTerm ) type ).getString() : type.toString() );
+		return types;
+	}
+
+	private static int history( String config ) throws IllegalArgumentException {
+		if ( config == null )
+			return DEFAULT_HISTORY;
+		Literal traceLit = parse( config );
+		Term last = traceLit.getTerm( traceLit.getArity() - 1 );
+		if ( traceLit.getArity() < 2 || !last.isNumeric() )
+			return DEFAULT_HISTORY;
+		try {
+			return ( int ) ( ( NumberTerm ) last ).solve();
+		} catch ( NoValueException nve ) {
+			throw new IllegalArgumentException( "The trace history should be a number, found: " + config );
+		}
+	}
+
+	/****************************************/
+	/* TRACING                              */
+	/****************************************/
+
+	/** @return true if connection events are traced */
+	public boolean isInfo() {
+		return info;
+	}
+
+	/** @return true if messages are traced */
+	public boolean isDebug() {
+		return debug;
+	}
+
+	/** @param type A message type
+	 * @return true if the messages of that type are traced
+	 */
+	public boolean traces( String type ) {
+		return debug && ( types == null || types.contains( type ) );
+	}
+
+	/** Traces a connection event */
+	public void event( String text ) {
+		if ( info )
+			record( EVENT, "event", text );
+	}
+
+	/** Traces a message received from the body
+	 * @param msg The decoded message, formatted now since its perception is annotated later
+	 */
+	public void in( BodyMsg msg ) {
+		if ( debug && traces( msg.getType() ) )
+			record( IN, msg.getType(), msg.toString() );
+	}
+
+	/** Traces a raw message received from the body that could not be decoded
+	 * @param frame The message as JSON string or binary frame
+	 */
+	public void raw( Object frame ) {
+		if ( debug )
+			record( IN, "raw", copy( frame ) );
+	}
+
+	/** Traces a message sent to the body
+	 * @param type The message type
+	 * @param msg The message: a binary frame is formatted by the background thread, anything else now
+	 */
+	public void out( String type, Object msg ) {
+		if ( debug && traces( type ) )
+			record( OUT, type, copy( msg ) );
+	}
+
+	/** Snapshots a payload: binary frames may be reused by the socket once handled, so they are copied,
+	 * and the other objects, e.g. literals and JSON objects, may still change, so they are formatted
+	 */
+	private static Object copy( Object payload ) {
+		if ( !( payload instanceof ByteBuffer ) )
+			return String.valueOf( payload );
+		ByteBuffer frame = ( ( ByteBuffer ) payload ).duplicate();
+		byte[] bytes = new byte[ frame.remaining() ];
+		frame.get( bytes );
+		return bytes;
+	}
+
+	/** Writes an entry in the ring; callable from any thread and never blocks */
+	private void record( char dir, String kind, Object payload ) {
+		long seq = head.getAndIncrement();
+		int i = ( int ) ( seq & mask );
+		times[ i ] = System.currentTimeMillis();
+		dirs[ i ] = dir;
+		kinds[ i ] = kind;
+		payloads[ i ] = payload;
+		published.lazySet( i, seq );
+	}
+
+	/****************************************/
+	/* PRINTING                             */
+	/****************************************/
+
+	/** Prints the last entries of the history, from the calling thread
+	 * <p>
+	 * Used when the agent dies, so that what it was seeing and doing is not lost.
+	 * </p>
+	 */
+	public void dump() {
+		if ( !info )
+			return;
+		long end = head.get();
+		long start = Math.max( end - mask - 1, 0 );
+		StringBuilder sb = new StringBuilder();
+		sb.append( "[Trace] Last " ).append( end - start ).append( " entries of " ).append( agName ).append( ":\n" );
+		for ( long seq = start; seq < end; seq++ )
+			format( seq, sb );
+		print( sb );
+	}
+
+	/** Stops draining this tracer, printing what is left */
+	public void close() {
+		if ( !info )
+			return;
+		active.remove( this );
+		synchronized ( this ) {
+			StringBuilder sb = new StringBuilder();
+			drainTo( sb );
+			print( sb );
+		}
+	}
+
+	private static synchronized void start( Tracer tracer ) {
+		active.add( tracer );
+		if ( drainer != null )
+			return;
+		drainer = Executors.newSingleThreadScheduledExecutor( r -> {
+			Thread t = new Thread( r, "vesna-trace" );
+			t.setDaemon( true );
+			return t;
+		} );
+		drainer.scheduleWithFixedDelay( Tracer::drainAll, DRAIN_PERIOD, DRAIN_PERIOD, TimeUnit.MILLISECONDS );
+	}
+
+	/** Prints the new entries of each tracer with a single write to its logger */
+	private static void drainAll() {
+		StringBuilder sb = new StringBuilder();
+		for ( Tracer tracer : active )
+			synchronized ( tracer ) {
+				sb.setLength( 0 );
+				tracer.drainTo( sb );
+				tracer.print( sb );
+			}
+	}
+
+	/** Writes the formatted entries to the logger, without the last line break */
+	private void print( StringBuilder sb ) {
+		if ( sb.length() == 0 || logger == null )
+			return;
+		if ( sb.charAt( sb.length() - 1 ) == '\n' )
+			sb.setLength( sb.length() - 1 );
+		logger.info( sb.toString() );
+	}
+
+	private void drainTo( StringBuilder sb ) {
+		long end = head.get();
+		if ( end - tail > mask + 1 ) {
+			lost += end - tail - mask - 1;
+			tail = end - mask - 1;
+		}
+		while ( tail < end ) {
+			long seen = published.get( ( int ) ( tail & mask ) );
+			// Claimed but not written yet: try again at the next drain
+			if ( seen < tail )
+				break;
+			if ( !format( tail, sb ) )
+				lost++;
+			tail++;
+		}
+		if ( lost > 0 ) {
+			sb.append( "[Trace] " ).append( agName ).append( ": " ).append( lost ).append( " entries lost\n" );
+			lost = 0;
+		}
+	}
+
+	/** Formats an entry
+	 * @return false if the entry was overwritten meanwhile
+	 */
+	private boolean format( long seq, StringBuilder sb ) {
+		int i = ( int ) ( seq & mask );
+		if ( published.get( i ) != seq )
+			return false;
+		long time = times[ i ];
+		char dir = dirs[ i ];
+		String kind = kinds[ i ];
+		Object payload = payloads[ i ];
+		// The slot may have been reused while reading it
+		if ( published.get( i ) != seq )
+			return false;
+		sb.append( TIME.format( LocalTime.ofInstant( Instant.ofEpochMilli( time ), ZoneId.systemDefault() ) ) )
+			.append( " [" ).append( agName ).append( "] " ).append( dir ).append( ' ' )
+			.append( kind ).append( ": " ).append( text( payload ) ).append( '\n' );
+		return true;
+	}
+
+	private static String text( Object payload ) {
+		if ( payload instanceof byte[] ) {
+			try {
+				return BinaryCodec.toJson( ByteBuffer.wrap( ( byte[] ) payload ) ).toString();
+			} catch ( IllegalArgumentException iae ) {
+				return "<" + ( ( byte[] ) payload ).length + " bytes: " + iae.getMessage() + ">";
+			}
+		}
+		return String.valueOf( payload );
+	}
+
+}
@@ -0,0 +1,48 @@
+package vesna;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Numbers the traits of a temper, so that the plans can refer to them by index instead of by name
+ * @author Andrea Gatti
+ */
+public class TraitRegistry {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[ 8 ];
+
+    /** Gives an id to a trait, if it does not have one yet
+     * @param name The name of the trait
+     * @return Its id
+     */
+    public int register( String name ) {
+        Integer id = ids.get( name );
+        if ( id != null )
+            return id;
+        id = ids.size();
+        if ( id == names.length )
+            names = Arrays.copyOf( names, names.length * 2 );
+        names[ id ] = name;
+        ids.put( name, id );
+        return id;
+    }
+
+    /** @return The id of a trait, -1 if the temper does not have it */
+    public int id( String name ) {
+        Integer id = ids.get( name );
+        return id == null ? -1 : id;
+    }
+
+    /** @return The name of a trait */
+    public String name( int id ) {
+        return names[ id ];
+    }
+
+    /** @return The number of traits */
+    public int size() {
+        return ids.size();
+    }
+
+}
@@ -1,9 +1,11 @@
 package vesna;
 
 import jason.JasonException;
+import jason.RevisionFailedException;
 import jason.architecture.AgArch;
 import jason.asSemantics.*;
 import jason.asSyntax.*;
+import jason.asSyntax.parser.ParseException;
 import jason.runtime.RuntimeServicesFactory;
 import jason.mas2j.ClassParameters;
 import jason.bb.BeliefBase;
@@ -14,11 +16,15 @@ import jason.NoValueException;
 import static jason.asSyntax.ASSyntax.*;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
-import org.gradle.internal.impldep.org.apache.commons.lang.StringUtils;
 import org.json.JSONObject;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -27,7 +33,8 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.stream.Collectors;
+import java.util.function.Function;
+import java.util.concurrent.ScheduledFuture;
 
 import java.util.logging.Logger;
 
@@ -42,6 +49,18 @@ import java.util.logging.Logger;
  * 		<li> {@code address( ADDRESS )} and {@code port( PORT )} that describe the address and port of the WebSocket server;</li>
  * 		<li> {@code temper( [ LIST OF PROPENSIONS ] )} and {@code strategy( most_similar | random )} for the plan temper choice.</li>
  * 		<li> {@code strategy( most_similar | random )} for the plan temper choice.</li>
+ * 		<li> {@code slots( functor( key_arity ), ... )} for the beliefs where the latest value replaces the previous one (see {@link BeliefSlots}).</li>
+ * 		<li> {@code throttle( functor( MIN_INTERVAL, MIN_DISTANCE ), ... )} for the slotted positions that produce an event only when they change enough (see {@link PerceptionThrottle}).</li>
+ * 		<li> {@code inbox( CAPACITY )} for the number of body messages of a type that can wait for the reasoning cycle (see {@link PerceptionInbox}).</li>
+ * 		<li> {@code shedding( type( keep_latest | drop_oldest | never_drop | coalesce ), ... )} for what to drop when the mind falls behind.</li>
+ * 		<li> {@code max_age( type( MILLISECONDS ), ... )} for discarding the timestamped messages that waited too long.</li>
+ * 		<li> {@code codec( json | binary )} for the frame format proposed to the body (see {@link BinaryCodec}).</li>
+ * 		<li> {@code reconnect( MIN_DELAY, MAX_DELAY )} for the backoff in milliseconds of the reconnections to the body (see {@link Backoff}).</li>
+ * 		<li> {@code connection( own | shared )} for a connection of its own or one shared by all the agents of the body host (see {@link BodyHub}).</li>
+ * 		<li> {@code transport( websocket | nio )} for a WebSocket client of its own or the event loop shared by all the connections (see {@link BodyLink}).</li>
+ * 		<li> {@code coalesce( MILLISECONDS )} for the window in which a newer movement replaces the previous one (see {@link ActionOutbox}).</li>
+ * 		<li> {@code ping( MILLISECONDS )} and {@code metrics( MILLISECONDS )} for how often the body is pinged and the metrics of the link are logged (see {@link LinkMetrics}).</li>
+ * 		<li> {@code trace( off | info | debug, [ TYPES ], HISTORY )} for tracing the messages exchanged with the body (see {@link Tracer}).</li>
  * 	</ul>
  * <p>
  * In order to use it you should add to your .jcm:
@@ -52,6 +71,7 @@ import java.util.logging.Logger;
  * 	port: 			8080
  * 	temper:			propensions([ ... ])
  * 	strategy: 		random
+ * 	slots: 			slots( sight(2) )
  * }
  * </pre>
  * @author Andrea Gatti
@@ -60,10 +80,47 @@ public class VesnaAgent extends Agent{
 
 	// GLOBAL VARIABLES
 	/** WebSocket Client that connects with the body */
-	private WsClient client;
+	private BodyLink client;
+	/** The connection shared with the other agents of the body host, null if the agent has its own */
+	private BodyHub hub;
 	// // private String myName;
 	/** The temper of the agent */
 	private Temper temper;
+	/** The intentions already run in the current round of selectIntention */
+	private final Set<Intention> ranThisRound = Collections.newSetFromMap( new IdentityHashMap<>() );
+	/** The intentions that did not run yet in the current round, reused by selectIntention */
+	private final List<Intention> roundCandidates = new ArrayList<>();
+	/** Decoder for the messages coming from the body */
+	private final BodyMsgDecoder decoder = new BodyMsgDecoder();
+	/** Codec for the binary frames, used if the body accepts it */
+	private final BinaryCodec codec = new BinaryCodec();
+	/** Encoder reused for all the actions of the agent */
+	private ActionEncoder encoder;
+	/** The actions sent to the body, waiting for their completion */
+	private ActionRegistry actions;
+	/** Coalesces the actions superseding each other */
+	private ActionOutbox outbox;
+	/** Snapshot of the {@code propensions} belief, valid until the belief changes */
+	private ListTerm propensions;
+	private boolean propensionsValid;
+	/** The last action encoded without its propensions, reused by perform */
+	private byte[] bareAction = new byte[ 256 ];
+	/** The propensions of an agent without the belief */
+	private static final ListTerm NO_PROPENSIONS = new ListTermImpl();
+	/** The beliefs that are replaced instead of added */
+	private BeliefSlots slots;
+	/** Decides when a new position is worth a belief event */
+	private PerceptionThrottle throttle;
+	/** The messages decoded by the WebSocket thread waiting for the reasoning cycle */
+	private PerceptionInbox inbox;
+	/** The overflow of the inbox already reported */
+	private long reportedOverflow;
+	/** The messages decoded from the current frame, reused by the WebSocket thread */
+	private final List<BodyMsg> received = new ArrayList<>();
+	/** Traces the messages exchanged with the body */
+	private Tracer tracer = Tracer.OFF;
+	/** The periodic export of the metrics, null if disabled */
+	private ScheduledFuture<?> metricsExport;
 	// // private Random dice = new Random();
 	/** The logger necessary to print on the JaCaMo log */
 	protected transient Logger logger;
@@ -89,16 +146,53 @@ public class VesnaAgent extends Agent{
 		Settings stts = getTS().getSettings();
 		String temperStr 	= stts.getUserParameter( "temper" );
 		String strategy 	= stts.getUserParameter( "strategy" );
+		String slotsStr 	= stts.getUserParameter( "slots" );
+		String throttleStr 	= stts.getUserParameter( "throttle" );
+		String inboxStr 	= stts.getUserParameter( "inbox" );
+		String shedding 	= stts.getUserParameter( "shedding" );
+		String maxAge 		= stts.getUserParameter( "max_age" );
+		String codecStr 	= stts.getUserParameter( "codec" );
+		String coalesceStr 	= stts.getUserParameter( "coalesce" );
+		String reconnectStr = stts.getUserParameter( "reconnect" );
+		String connection 	= stts.getUserParameter( "connection" );
+		String transport 	= stts.getUserParameter( "transport" );
+		String traceStr 	= stts.getUserParameter( "trace" );
+		String pingStr 		= stts.getUserParameter( "ping" );
+		String metricsStr 	= stts.getUserParameter( "metrics" );
 		String address 		= stts.getUserParameter( "address" );
 		int port 			= Integer.parseInt( stts.getUserParameter( "port" ) );
 		logger = getTS().getLogger();
 
 		// Initialize the agent temper and strategy
 		temper = new Temper( temperStr, strategy );
+		temper.compile( getPL() );
+
+		// Initialize the belief slots
+		slots = new BeliefSlots( slotsStr );
+		throttle = new PerceptionThrottle( throttleStr );
+
+		// Initialize the inbox before the body can send anything
+		int inboxCapacity = inboxStr == null ? PerceptionInbox.DEFAULT_CAPACITY : Integer.parseInt( inboxStr );
+		inbox = new PerceptionInbox( inboxCapacity, shedding, maxAge );
+
+		encoder = new ActionEncoder( getTS().getAgArch().getAgName() );
+		long window = coalesceStr == null ? ActionOutbox.DEFAULT_WINDOW : Long.parseLong( coalesceStr );
+		outbox = new ActionOutbox( this::send, window );
+		actions = new ActionRegistry( getTS() );
+
+		// Initialize the tracer before the body can send anything
+		tracer = new Tracer( getTS().getAgArch().getAgName(), traceStr, logger );
 
 		logger.info( "Body is at " + address + " : " + port );
 
-		initBody( address, port );
+		long ping = pingStr == null ? LinkMetrics.DEFAULT_PING_PERIOD : Long.parseLong( pingStr );
+		initBody( address, port, "binary".equals( codecStr ), reconnectStr, "shared".equals( connection ), "nio".equals( transport ), ping );
+
+		// Log the metrics of the link periodically
+		if ( metricsStr != null && client != null && Long.parseLong( metricsStr ) > 0 )
+			metricsExport = LinkMetrics.every( () -> logger.info( "Body link: " + client.getMetrics()
+				+ String.format( ", %d actions completed, mean %.2f ms max %.2f ms", actions.getCompleted(), actions.getMeanRtt(), actions.getMaxRtt() ) ),
+				Long.parseLong( metricsStr ) );
 
 	}
 
@@ -107,45 +201,77 @@ public class VesnaAgent extends Agent{
 		* Initialize the Body connection through WebSocket.
 		* @param	address	the address where the body is located
 		* @param	port	the port where the body is listening
+		* @param	binary	true to propose the binary codec to the body, falling back to JSON if it does not accept it
+		* @param	reconnect	the backoff of the reconnections, written as {@code reconnect( MIN_DELAY, MAX_DELAY )}, or null for the default one
+		* @param	shared	true to share the connection with the other agents of the same body host (see {@link BodyHub})
+		* @param	nio	true to use the event loop shared by all the connections (see {@link NioBodyLink})
+		* @param	ping	the milliseconds between two pings of the body, 0 to disable them
 	 */
-	private void initBody( String address, int port ) {
-
-		// Initialize the WebSocket client
-		try {
-			URI bodyAddress = new URI( "ws://" + address + ":" + port );
-			client = new WsClient( bodyAddress );
-		} catch( Exception e ){
-			stop( e.getMessage() );
-		}
+	private void initBody( String address, int port, boolean binary, String reconnect, boolean shared, boolean nio, long ping ) {
 
 		// Connect the two handle functions to the client object
-		client.setMsgHandler( new WsClientMsgHandler() {
+		WsClientMsgHandler handler = new WsClientMsgHandler() {
+			@Override
+			public void handleOpen() {
+				// A new session: the body does not know the propensions yet
+				outbox.newSession();
+				int replayed = outbox.replay();
+				logger.info( "Body connected" + ( replayed > 0 ? ", replayed " + replayed + " buffered actions" : "" ) );
+				setDisconnected( false );
+			}
+
+			@Override
+			public void handleClose( int code, String reason, boolean remote ) {
+				setDisconnected( true );
+			}
+
 			@Override
 			public void handleMsg( String msg ) {
 				vesnaHandleMsg( msg );
 			}
 
+			@Override
+			public void handleMsg( ByteBuffer msg ) {
+				vesnaHandleMsg( msg );
+			}
+
 			@Override
 			public void handleError( Exception ex ) {
 				vesnaHandleError( ex );
 			}
-		}  );
+		};
 
-		// Connect the body
+		// Initialize the WebSocket client, or attach to the one shared with the other agents of the body host
 		try {
-            // Replaced client.connect() with client.connectBlocking()
-			// to avoid bug with patrols asking to move before connection is established
-            boolean connected = client.connectBlocking(); 
-            
-            if (!connected) {
-                stop( "Failed to establish WebSocket connection to " + address + ":" + port );
-            } else {
-                logger.info("WebSocket connection established successfully.");
-            }
-            
-        } catch( Exception e ){
-            stop( e.getMessage() );
-        }
+			URI bodyAddress = new URI( "ws://" + address + ":" + port );
+			if ( shared ) {
+				hub = BodyHub.get( bodyAddress, binary, nio );
+				client = hub.getClient();
+			} else
+				client = BodyLink.create( bodyAddress, binary, nio );
+		} catch( Exception e ){
+			stop( e.getMessage() );
+			return;
+		}
+
+		// A shared client traces its connection for the agents that trace
+		if ( !shared || tracer.isInfo() )
+			client.setTracer( tracer );
+		if ( reconnect != null ) {
+			long[] backoff = parseBackoff( reconnect );
+			client.setBackoff( backoff[ 0 ], backoff[ 1 ] );
+		}
+		client.getMetrics().setPingPeriod( ping );
+
+		// Connect the body without waiting for the handshake, so that all the agents connect in parallel:
+		// the actions performed before the connection is open (e.g. the first move of a patrol)
+		// wait in the outbox and are replayed by handleOpen
+		if ( shared )
+			hub.attach( getTS().getAgArch().getAgName(), handler );
+		else {
+			client.setMsgHandler( handler );
+			client.connect();
+		}
 
 	}
 
@@ -153,11 +279,174 @@ public class VesnaAgent extends Agent{
 	/* ACTION ("OUTPUT")                    */
 	/****************************************/
 
+	/** Starts a new body action, to be filled and then sent with {@link #perform(ActionEncoder)}
+	 * <p>
+	 * The encoder is reused: an action must be performed before starting the next one.
+	 * </p>
+	 * @param type The action type, e.g. {@code walk}
+	 * @return The encoder of the agent, ready for the data fields
+	 */
+	public ActionEncoder action( String type ) {
+		return encoder.begin( type );
+	}
+
+	/** Performs the action built with {@link #action(String)}, in binary if the body accepted the codec
+	 * <p>
+	 * If the action carries the propensions it is encoded with and without them, and the {@link ActionOutbox}
+	 * sends the version without them only once the body received the current ones in this session:
+	 * the propensions are not lost with an action that is replaced, dropped or replayed after a reconnection.
+	 * The action goes through the {@link ActionOutbox}, so it may be replaced by a newer one with the same key.
+	 * It gets an id from the {@link ActionRegistry}, so that the intention performing it can wait for its completion.
+	 * </p>
+	 * @param action The encoder holding the action
+	 * @return The id of the action
+	 */
+	public long perform( ActionEncoder action ) {
+		long id = actions.register( action.getKey(), getTS().getC().getSelectedIntention() );
+		action.id( id );
+		ByteBuffer frame = isBinary() ? action.encodeBinary() : null;
+		boolean binary = frame != null;
+		if ( !binary )
+			frame = action.encodeJson();
+		if ( !action.carriesPropensions() ) {
+			if ( tracer.isDebug() )
+				tracer.out( action.getType(), action.toString() );
+			outbox.send( action.getKey(), action.isReplaceable(), frame, null, null, binary );
+			return id;
+		}
+
+		// Keep the version without the propensions, then encode the one with them
+		int bareSize = frame.remaining();
+		if ( bareSize > bareAction.length )
+			bareAction = new byte[ Math.max( bareAction.length * 2, bareSize ) ];
+		frame.get( bareAction, 0, bareSize );
+		ListTerm current = getPropensions();
+		action.propensions( current );
+		if ( tracer.isDebug() )
+			tracer.out( action.getType(), action.toString() );
+		frame = binary ? action.encodeBinary() : action.encodeJson();
+		outbox.send( action.getKey(), action.isReplaceable(), frame, ByteBuffer.wrap( bareAction, 0, bareSize ), current, binary );
+		return id;
+	}
+
+	/** @return The latency and traffic of the connection to the body */
+	public LinkMetrics getMetrics() {
+		return client.getMetrics();
+	}
+
+	/** @return The registry of the actions sent to the body */
+	public ActionRegistry getActions() {
+		return actions;
+	}
+
+	/** Sends an encoded action to the body; called by the outbox, which serializes the calls
+	 * <p>
+	 * A binary action buffered during a disconnection is converted to JSON if the new session did not negotiate the codec.
+	 * </p>
+	 * @param frame The encoded action
+	 * @param binary true if it is a {@link BinaryCodec} frame, false if it is JSON text
+	 * @return false if the body is not connected
+	 */
+	private boolean send( ByteBuffer frame, boolean binary ) {
+		// The agent is stopping because the body could not be set up: the action stays in the outbox, cleared by stopAg
+		BodyLink client = this.client;
+		if ( client == null )
+			return false;
+		if ( binary && !client.isBinary() && client.isOpen() )
+			return client.write( BinaryCodec.toJson( frame ).toString() );
+		// A body using the binary codec accepts JSON text as well
+		return client.write( frame, binary );
+	}
+
+	/** @return true if the body accepted the binary codec, false also if there is no body link */
+	private boolean isBinary() {
+		BodyLink client = this.client;
+		return client != null && client.isBinary();
+	}
+
+	/** Tells the plans whether the body is reachable with the {@code body( disconnected )} belief
+	 * @param disconnected true if the connection was lost
+	 */
+	private void setDisconnected( boolean disconnected ) {
+		getTS().runAtBeginOfNextCycle( () -> {
+			try {
+				Literal belief = createLiteral( "body", TermCache.atom( "disconnected" ) );
+				if ( disconnected )
+					addBel( belief );
+				else
+					delBel( belief );
+			} catch ( RevisionFailedException e ) {
+				logger.warning( e.getMessage() );
+			}
+		} );
+		getTS().getAgArch().wakeUpSense();
+	}
+
+	/** Reads the backoff of the reconnections
+	 * @param config The backoff written as {@code reconnect( MIN_DELAY, MAX_DELAY )}, in milliseconds
+	 * @return The minimum and maximum delay
+	 */
+	private static long[] parseBackoff( String config ) throws IllegalArgumentException {
+		try {
+			Literal backoff = parseLiteral( config );
+			return new long[]{
+				( long ) ( ( NumberTerm ) backoff.getTerm( 0 ) ).solve(),
+				( long ) ( ( NumberTerm ) backoff.getTerm( 1 ) ).solve() };
+		} catch ( ParseException | NoValueException | ClassCastException | IndexOutOfBoundsException e ) {
+			throw new IllegalArgumentException( "The reconnection backoff should be written as reconnect( min_delay, max_delay ), found: " + config );
+		}
+	}
+
 	/** Performs a body action in the environment
 	 * @param action The action to perform formatted into a JSON string
 	*/
 	public void perform( String action ) {
-		client.send( action );
+		if ( tracer.isDebug() )
+			tracer.out( "action", action );
+		outbox.send( null, StandardCharsets.UTF_8.encode( action ), false );
+	}
+
+	/** Performs a body action in the environment, in binary if the body accepted the codec
+	 * @param action The action to perform as JSON object with {@code sender}, {@code receiver}, {@code type} and {@code data}
+	*/
+	public void perform( JSONObject action ) {
+		if ( tracer.isDebug() )
+			tracer.out( action.optString( "type" ), action );
+		if ( isBinary() ) {
+			ByteBuffer frame = BinaryCodec.encode( action );
+			if ( frame != null ) {
+				outbox.send( null, frame, true );
+				return;
+			}
+		}
+		outbox.send( null, StandardCharsets.UTF_8.encode( action.toString() ), false );
+	}
+
+	/** @return The list in the {@code propensions} belief, or an empty list if there is none;
+	 * read from the belief base only after the belief changed
+	 */
+	public ListTerm getPropensions() {
+		if ( !propensionsValid ) {
+			Unifier u = new Unifier();
+			Term ps = believes( TermCache.literal( "propensions( Ps )" ), u ) ? u.get( "Ps" ) : null;
+			propensions = ps != null && ps.isList() ? ( ListTerm ) ps : NO_PROPENSIONS;
+			propensionsValid = true;
+		}
+		return propensions;
+	}
+
+	/** Invalidates the propensions snapshot whenever the {@code propensions} belief is added or removed
+	 * @return The changes of the belief base, as computed by the default revision
+	 */
+	@Override
+	public List<Literal>[] brf( Literal beliefToAdd, Literal beliefToDel, Intention i, boolean addEnd ) throws RevisionFailedException {
+		if ( isPropensions( beliefToAdd ) || isPropensions( beliefToDel ) )
+			propensionsValid = false;
+		return super.brf( beliefToAdd, beliefToDel, i, addEnd );
+	}
+
+	private static boolean isPropensions( Literal belief ) {
+		return belief != null && belief.getArity() == 1 && belief.getFunctor().equals( "propensions" );
 	}
 
 	/****************************************/
@@ -165,50 +454,188 @@ public class VesnaAgent extends Agent{
 	/****************************************/
 
 	/** Handles incoming messages from the body.
-	* Available types are: signal, sight, allies.
+	* Available types are: signal, sight, allies, navigation, event and batch.
+	* <p>
+	* It runs on the WebSocket thread: the message is decoded and queued in the {@link PerceptionInbox}
+	* following the shedding policy of its type,
+	* the perception reaches the mind at the beginning of the next reasoning cycle (see {@link #buf(Collection)}).
+	* Known types are decoded directly into Jason terms by the {@link BodyMsgDecoder};
+	* anything else goes through the generic JSON path.
+	* A {@code batch} carries all the messages of a physics frame: they are queued together
+	* and the reasoning cycle is woken up once.
+	* </p>
 	* @param msg The message received formatted as JSON string:
 	* <pre>
 	 * {
 	 *   "sender": "body",
 	 *   "receiver": "agent_name",
-	 *   "type": "signal | sight | allies",
-	 *   "data": { ... }
+	 *   "type": "signal | sight | allies | navigation | event | batch",
+	 *   "data": { ... } | { "messages": [ ... ] }
 	 * }
 	 * </pre>
 	*/
 	public void vesnaHandleMsg( String msg ) {
+		decoder.decode( msg, received, this::vesnaHandleJsonMsg );
+		enqueueReceived();
+	}
+
+	/** Handles incoming binary messages from the body.
+	* Like {@link #vesnaHandleMsg(String)} it runs on the WebSocket thread and only queues the decoded perceptions.
+	* @param msg The frame encoded with the {@link BinaryCodec}
+	*/
+	public void vesnaHandleMsg( ByteBuffer msg ) {
+		int size = msg.remaining();
+		ByteBuffer frame = tracer.isDebug() ? msg.duplicate() : null;
+		int rejected = codec.decode( msg, received );
+		if ( rejected > 0 && frame != null )
+			tracer.raw( frame );
+		if ( rejected > 0 )
+			logger.warning( "Received " + rejected + " malformed or unknown binary frame(s) from body (" + size + " bytes)" );
+		enqueueReceived();
+	}
+
+	/** Queues the messages decoded from a frame and wakes the reasoning cycle up once */
+	private void enqueueReceived() {
+		if ( received.isEmpty() )
+			return;
+		if ( tracer.isDebug() )
+			for ( BodyMsg msg : received )
+				tracer.in( msg );
+		// The completions resume the waiting intentions right away; the perceptions still become beliefs
+		for ( BodyMsg msg : received )
+			if ( msg.getActionId() != 0 )
+				actions.complete( msg );
+		inbox.offerAll( received );
+		received.clear();
+		getTS().getAgArch().wakeUpSense();
+	}
+
+	/** Moves the perceptions queued by the body into the mind
+	 * <p>
+	 * Overrides the belief update function so that the inbox is drained in bulk at the start of each reasoning cycle,
+	 * before the usual percepts are processed.
+	 * </p>
+	 * @param percepts The percepts coming from the environment
+	 * @return The number of changes in the belief base
+	 */
+	@Override
+	public int buf( Collection<Literal> percepts ) {
+		int delivered = inbox.drain( this::deliver );
+		long overflow = inbox.getOverflow();
+		if ( overflow > reportedOverflow ) {
+			logger.warning( "The body floods the mind: " + ( overflow - reportedOverflow ) + " perceptions that should never be dropped were dropped" );
+			reportedOverflow = overflow;
+		}
+		return super.buf( percepts ) + delivered;
+	}
+
+	/** Delivers a decoded message to the mind
+	 * @param msg The decoded message: signals are <i>sensed</i>, everything else becomes a belief;
+	 * if the body timestamped it the perception is annotated with {@code ts( MILLISECONDS )}
+	 */
+	private void deliver( BodyMsg msg ) {
+		try {
+			Literal perception = msg.getPerception();
+			if ( msg.getTimestamp() != 0 )
+				perception.addAnnot( createStructure( "ts", createNumber( msg.getTimestamp() ) ) );
+			if ( msg.getKind() == BodyMsg.Kind.SIGNAL )
+				sense( perception );
+			else
+				believe( perception );
+		} catch ( Exception e ) {
+			logger.severe( "Error handling message: " + e.getMessage() );
+		}
+	}
+
+	/** Adds a perceived belief, replacing the previous value if the belief lives in a slot
+	 * <p>
+	 * The previous value is removed straight from the belief base so that the replacement does not produce
+	 * a deletion event; the addition produces the usual {@code +belief} event,
+	 * unless the {@link PerceptionThrottle} finds that the new position only repeats the last one:
+	 * in that case the belief is updated silently.
+	 * If the same belief is already there nothing changes.
+	 * </p>
+	 * @param belief The belief to add
+	 * @see BeliefSlots
+	 */
+	private void believe( Literal belief ) throws RevisionFailedException {
+		if ( !slots.isSlotted( belief ) ) {
+			addBel( belief );
+			return;
+		}
+		Literal current = getBB().contains( belief );
+		if ( current != null ) {
+			slots.put( current );
+			return;
+		}
+		Literal previous = slots.put( belief );
+		boolean replaced = previous != null && getBB().remove( previous );
+		if ( throttle.isThrottled( belief ) ) {
+			// The plans removed the belief: its next value is news again
+			if ( !replaced )
+				throttle.forget( belief );
+			if ( throttle.isRedundant( belief, System.currentTimeMillis() ) ) {
+				if ( !belief.hasSource() )
+					belief.addAnnot( BeliefBase.TSelf );
+				getBB().add( belief );
+				return;
+			}
+		}
+		addBel( belief );
+	}
+
+	/** Decodes incoming messages through a full JSON parse.
+	* Used as fallback for the messages that the decoder does not know.
+	* @param msg The message received formatted as JSON string
+	* @return The decoded message, or null if there is nothing to perceive
+	*/
+	private BodyMsg vesnaHandleJsonMsg( String msg ) {
 		try {
-			System.out.println( "Received message: " + msg );
 			JSONObject log = new JSONObject( msg );
 			String sender = log.getString( "sender" );
 			String receiver = log.getString( "receiver" );
 			String type = log.getString( "type" );
+			long timestamp = log.optLong( "ts", 0 );
+			long actionId = log.optLong( "aid", 0 );
 			JSONObject data = log.getJSONObject( "data" );
+			Literal perception = null;
+			BodyMsg.Kind kind = BodyMsg.Kind.BELIEF;
 			switch( type ){
 				case "signal":
-					handleEvent( data );
+					perception = handleEvent( data );
+					kind = BodyMsg.Kind.SIGNAL;
 					break;
 				case "sight":
-					handleSight( data );
+					perception = handleSight( data );
 					break;
 				case "allies":
-					handleAlliesFound( data );
+					perception = handleAlliesFound( data );
 					break;
 				case "event":  
-					handleTargetLost( data );
+					perception = handleTargetLost( data );
 					break;
 				case "navigation":
-                	handleNavigation( data );
-                	break;
+					perception = handleNavigation( data );
+					break;
+				case "batch":
+					logger.warning( "Received malformed batch from body" );
+					break;
 				default:
 					logger.warning( "Unknown message type: " + type );
 			}
-			
+			if ( perception == null ) {
+				tracer.raw( msg );
+				return null;
+			}
+			return new BodyMsg( type, sender, receiver, perception, kind, timestamp, actionId );
+
 		} catch (org.json.JSONException e) {
+			tracer.raw( msg );
 			logger.warning("Received malformed JSON from body: " + msg);
 		} catch (Exception e) {
 			logger.severe("Error handling message: " + e.getMessage());
 		}
+		return null;
 	}
 
 	/** Signals the mind about a perception
@@ -223,7 +650,7 @@ public class VesnaAgent extends Agent{
 		}
 	}
 
-	/** Takes all the data from an event and senses a perception
+	/** Takes all the data from an event and builds the perception to sense
 	 * @param event The event to handle formatted as JSON object:
 		* <pre>
 		 * {
@@ -232,18 +659,17 @@ public class VesnaAgent extends Agent{
 		 *   "reason": "event_reason"
 		 * }
 		* </pre>
-	* It will <i>sense</i> a literal formatted as {@code event_type( event_status, event_reason )}.
+	* @return A literal formatted as {@code event_type( event_status, event_reason )} to <i>sense</i>.
 	*/
-	private void handleEvent( JSONObject event ) {
+	private Literal handleEvent( JSONObject event ) {
 		String event_type = event.getString( "type" );
 		String event_status = event.getString( "status" );
 		String event_reason = event.getString( "reason" );
-		Literal perception = createLiteral( event_type, createLiteral( event_status ), createLiteral( event_reason ) );
-		sense(perception);
+		return createLiteral( event_type, TermCache.atom( event_status ), TermCache.atom( event_reason ) );
 	}
 
 	/**
-	* Takes all the data from a sight and adds a belief.
+	* Takes all the data from a sight and builds the belief.
 	* Supports optional position data for spatial awareness.
 	* @param sight The sight to handle formatted as JSON object:
 		* <pre>
@@ -254,33 +680,24 @@ public class VesnaAgent extends Agent{
 		 *   "pos_y": 200.0     // optional
 		 * }
 		* </pre>
-		* If position is provided, it will <i>add a belief</i> formatted as 
+		* @return If position is provided, a belief formatted as
 		* {@code sight( object, id, pos(X, Y) )}.
-		* Otherwise, it will create {@code sight( object, id )}.
+		* Otherwise, {@code sight( object, id )}.
 	*/
-	private void handleSight( JSONObject sight ) {
+	private Literal handleSight( JSONObject sight ) {
 		String object = sight.getString( "sight" );
 		long id = sight.getLong( "id" );
 		
-		Literal sight_belief;
-		
 		// Check if position data is included
 		if ( sight.has( "pos_x" ) && sight.has( "pos_y" ) ) {
 			// Create sight belief with position: sight(object, id, pos(x, y))
 			double posX = sight.getDouble( "pos_x" );
 			double posY = sight.getDouble( "pos_y" );
 			Literal position = createLiteral( "pos", createNumber( posX ), createNumber( posY ) );
-			sight_belief = createLiteral( "sight", createLiteral( object ), createNumber( id ), position );
-		} else {
-			// Create simple sight belief: sight(object, id)
-			sight_belief = createLiteral( "sight", createLiteral( object ), createNumber( id ) );
-		}
-		
-		try {
-			addBel( sight_belief );
-		} catch ( Exception e ) {
-			e.printStackTrace();
+			return createLiteral( "sight", TermCache.atom( object ), createNumber( id ), position );
 		}
+		// Create simple sight belief: sight(object, id)
+		return createLiteral( "sight", TermCache.atom( object ), createNumber( id ) );
 	}
 
 	/**
@@ -292,27 +709,21 @@ public class VesnaAgent extends Agent{
 	 *   "allies": ["sentry2", "sentry3"]
 	 * }
 	 * </pre>
-	 * It will <i>add a belief</i> formatted as {@code allies_nearby([sentry2, sentry3])}.
+	 * @return A belief formatted as {@code allies_nearby([sentry2, sentry3])}.
 	 * Note: Even an empty list is valid and will create {@code allies_nearby([])}.
 	 */
-	private void handleAlliesFound( JSONObject allies ) {
+	private Literal handleAlliesFound( JSONObject allies ) {
 		org.json.JSONArray allyArray = allies.getJSONArray( "allies" );
 		
 		// Build a Jason ListTerm from the JSON array
 		ListTerm allyList = new ListTermImpl();
 		for ( int i = 0; i < allyArray.length(); i++ ) {
 			String allyName = allyArray.getString( i );
-			allyList.add( createAtom( allyName ) );
+			allyList.add( TermCache.atom( allyName ) );
 		}
 		
 		// Create belief: allies_nearby([ally1, ally2, ...])
-		Literal allies_belief = createLiteral( "allies_nearby", allyList );
-		
-		try {
-			addBel( allies_belief );
-		} catch ( Exception e ) {
-			e.printStackTrace();
-		}
+		return createLiteral( "allies_nearby", allyList );
 	}
 
 	/**
@@ -320,57 +731,57 @@ public class VesnaAgent extends Agent{
      * Expected JSON data: { "status": "reached", "waypoint": "m1_a" }
      * Creates belief: navigation(reached, m1_a)
      */
-	
-	private void handleNavigation( JSONObject data ) {
+	private Literal handleNavigation( JSONObject data ) {
         String status = data.getString( "status" );
         String waypoint = data.getString( "waypoint" );
 
         // Create the literal: navigation( status, waypoint )
-        // We use createAtom because 'reached' and 'm1_a' are valid Prolog atoms.
-        Literal navBelief = createLiteral( "navigation", 
-                                           createAtom( status ), 
-                                           createAtom( waypoint ) );
-
-        try {
-            // Check if belief exists to avoid duplicates, or just add it.
-            // Note: In ASL, we will remove it after processing to handle loops.
-            addBel( navBelief );
-        } catch ( Exception e ) {
-            e.printStackTrace();
-        }
+        // We use atoms because 'reached' and 'm1_a' are valid Prolog atoms.
+        // Note: In ASL, we will remove it after processing to handle loops.
+        return createLiteral( "navigation", 
+                              TermCache.atom( status ), 
+                              TermCache.atom( waypoint ) );
     }
 
 	/**
 	 * Handles target_lost events.
 	 * Expected JSON: { "event": "target_lost", "pos_x": 10.0, "pos_y": 20.0, "reason": "..." }
-	 * Creates belief: target_lost( pos(X,Y), Reason )
+	 * Creates belief: target_lost( pos(X,Y), Reason ); other events are ignored.
 	 */
-	private void handleTargetLost( JSONObject data ) {
+	private Literal handleTargetLost( JSONObject data ) {
 		String eventName = data.getString("event");
 		
-		if (eventName.equals("target_lost")) {
-			double x = data.getDouble("pos_x");
-			double y = data.getDouble("pos_y");
-			String reason = data.getString("reason");
-
-			// Construct: pos(X, Y)
-			Literal pos = createLiteral("pos", createNumber(x), createNumber(y));
-			
-			// Construct: target_lost( pos(X, Y), reason )
-			Literal belief = createLiteral("target_lost", pos, createAtom(reason));
-			
-			try {
-				addBel(belief);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		}
+		if (!eventName.equals("target_lost"))
+			return null;
+
+		double x = data.getDouble("pos_x");
+		double y = data.getDouble("pos_y");
+		String reason = data.getString("reason");
+
+		// Construct: pos(X, Y)
+		Literal pos = createLiteral("pos", createNumber(x), createNumber(y));
+		
+		// Construct: target_lost( pos(X, Y), reason )
+		return createLiteral("target_lost", pos, TermCache.atom(reason));
 	}
 
 	/****************************************/
 	/* TEMPER OVERRIDES                     */
 	/****************************************/
 
+	private static final Function<Option, Pred> OPTION_LABEL = option -> option.getPlan().getLabel();
+	private static final Function<Intention, Pred> INTENTION_LABEL = intention -> intention.peek().getPlan().getLabel();
+
+	/** Loads the plans, compiling their temper annotations
+	 * @param asSrc The source of the agent
+	 */
+	@Override
+	public void load( String asSrc ) throws JasonException {
+		super.load( asSrc );
+		if ( temper != null )
+			temper.compile( getPL() );
+	}
+
 	/** Overrides the selectOption in order to consider Temper if needed
 	 * <p>
 	 * If there is only one option or the options are without temper it goes with the default selection;
@@ -386,14 +797,9 @@ public class VesnaAgent extends Agent{
 		if ( options.size() == 1 || !areOptionsWithTemper( options ) )
 			return super.selectOption( options );
 
-		// Wrap the options inside an object Temper Selectable
-		List<OptionWrapper> wrappedOptions = options.stream()
-			.map( OptionWrapper::new )
-			.collect( Collectors.toList() );
-
 		// Select with temper
 		try {
-			return temper.select( wrappedOptions ).getOption();
+			return options.get( temper.select( options, OPTION_LABEL ) );
 		} catch ( NoValueException nve ) {
 			stop( nve.getMessage() );
 		}
@@ -402,29 +808,47 @@ public class VesnaAgent extends Agent{
 
 	/** Overrides the selectIntention in order to consider Temper if added
 	 * <p>
-	 * If there is only one intention or the intentions are without temper it goes with the default selection;
-	 * Otherwise it calls the temper select method.
+	 * If there is only one intention or no intention in the queue runs a plan with a {@code temper} annotation
+	 * it goes with the default round robin of Jason, so the agents without temper keep its scheduling;
+	 * Otherwise it calls the temper prefer method: the effects of the plans were applied when they were adopted,
+	 * running a step of their intention does not apply them again.
+	 * </p>
+	 * <p>
+	 * The temper only orders the intentions inside a round, like the default round robin every intention runs one step per round:
+	 * the choice is among the intentions that did not run yet in the round, and the round starts again once all of them did.
+	 * The tempered ones come first, the others, e.g. reactive plans without temper, follow in the order of the queue,
+	 * so a preferred intention can not starve the others.
 	 * </p>
 	 * @param intentions The queue of intentions to choose from
 	 * @return The selected intention
-	 * @see vesna.Temper#select(List) Temper.select(List)
+	 * @see vesna.Temper#prefer(List, Function) Temper.prefer(List, Function)
 	 */
 	public Intention selectIntention( Queue<Intention> intentions ) {
 
 		// logger.info( "I have " + intentions.size() + " intentions" );
 
 		// If there is only one intention or the intentions are without temper go with the default
-		if ( intentions.size() == 1 || !areIntentionsWithTemper(intentions ) )
+		if ( intentions.size() == 1 || !areIntentionsWithTemper( intentions ) ) {
+			// The rounds only span the queues with tempered intentions
+			ranThisRound.clear();
 			return super.selectIntention( intentions );
+		}
 
-		// Wrap the intentions inside an object Temper Selectable
-		List<IntentionWrapper> wrappedIntentions = new ArrayList<>( intentions ).stream()
-			.map( IntentionWrapper::new )
-			.collect( Collectors.toList() );
+		// The candidates are the intentions that did not run in this round
+		roundCandidates.clear();
+		for ( Intention intention : intentions )
+			if ( !ranThisRound.contains( intention ) )
+				roundCandidates.add( intention );
+		if ( roundCandidates.isEmpty() ) {
+			ranThisRound.clear();
+			roundCandidates.addAll( intentions );
+		}
 
 		// Select with temper and remove the Intention from the queue
 		try {
-			Intention selected = temper.select( wrappedIntentions ).getIntention();
+			Intention selected = roundCandidates.get( temper.prefer( roundCandidates, INTENTION_LABEL ) );
+			roundCandidates.clear();
+			ranThisRound.add( selected );
 			Iterator<Intention> it = intentions.iterator();
 			while( it.hasNext() ) {
 				if ( it.next() == selected ) {
@@ -440,38 +864,34 @@ public class VesnaAgent extends Agent{
 	}
 
 	/** Check if there is at least one option with temper annotation
+	 * <p>
+	 * The annotations are compiled once per plan, so this only looks up a flag.
+	 * </p>
 	 * @param options The list of options to check
 	 * @return true if at least one option has temper annotation, false otherwise
 	 */
 	private boolean areOptionsWithTemper( List<Option> options ) {
-		Literal propension = createLiteral( "temper", new VarTerm( "X" ) );
-		for ( Option option : options ) {
-			Plan p = option.getPlan();
-			Pred l = p.getLabel();
-			if ( l.hasAnnot() ) {
-				for ( Term t : l.getAnnots() )
-					if ( new Unifier().unifies( propension, t ) )
-						return true;
-			}
-		}
+		if ( temper == null )
+			return false;
+		for ( int i = 0; i < options.size(); i++ )
+			if ( temper.of( options.get( i ).getPlan().getLabel() ).hasTemper() )
+				return true;
 		return false;
 	}
 
 	/** Check if there is at least one intention with temper annotation
+	 * <p>
+	 * The same {@code temper} annotation of the options, looked up on the plan on top of each intention.
+	 * </p>
 	 * @param intentions The queue of intentions to check
 	 * @return true if at least one intention has temper annotation, false otherwise
 	 */
 	private boolean areIntentionsWithTemper( Queue<Intention> intentions ) {
-		Literal propension = createLiteral( "propensions", new VarTerm( "X" ) );
-		for ( Intention intention : intentions ) {
-			Plan p = intention.peek().getPlan();
-			Pred l = p.getLabel();
-			if ( l.hasAnnot() ) {
-				for ( Term t : l.getAnnots() )
-					if ( new Unifier().unifies( propension, t ) )
-						return true;
-			}
-		}
+		if ( temper == null )
+			return false;
+		for ( Intention intention : intentions )
+			if ( !intention.isFinished() && temper.of( intention.peek().getPlan().getLabel() ).hasTemper() )
+				return true;
 		return false;
 	}
 
@@ -479,6 +899,22 @@ public class VesnaAgent extends Agent{
 	/* STOPPING THE AGENT                   */
 	/****************************************/
 
+	/** Stops the agent dumping the last traced messages, if any, to see what it was doing */
+	@Override
+	public void stopAg() {
+		if ( metricsExport != null )
+			metricsExport.cancel( false );
+		if ( outbox != null )
+			outbox.clear();
+		if ( hub != null )
+			hub.detach( getTS().getAgArch().getAgName() );
+		else if ( client != null )
+			client.shutdown();
+		tracer.dump();
+		tracer.close();
+		super.stopAg();
+	}
+
 	/** Stops the agent: prints a message and kills the agent
 	 * @param reason The reason why the agent is stopping
 	 */
@@ -487,12 +923,11 @@ public class VesnaAgent extends Agent{
 		kill_agent();
 	}
 
-	/** Handles a connection error: prints a message and kills the agent
+	/** Handles a connection error: prints a message; the client reconnects once the connection is closed
 	 * @param ex The exception raised
 	 */
 	public void vesnaHandleError( Exception ex ){
-		logger.severe( ex.getMessage() );
-		kill_agent();
+		logger.warning( "Body connection error: " + ex.getMessage() );
 	}
 
 	/** Kills the agent
@@ -0,0 +1,64 @@
+package vesna;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * 	Rolls an index with a probability proportional to its weight.
+ * </p>
+ * <p>
+ * 	The weights are summed into a cumulative distribution, kept in an array reused between rolls,
+ * 	and the roll is found in it with a binary search. A negative weight counts as 0, i.e. its choice is never rolled;
+ * 	if no weight is positive every index is equally likely.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class WeightedDice {
+
+    private final Random random;
+    /** The cumulative distribution of the last roll */
+    private double[] cdf = new double[ 8 ];
+
+    public WeightedDice() {
+        this( new Random() );
+    }
+
+    public WeightedDice( Random random ) {
+        this.random = random;
+    }
+
+    /** Rolls one of the first {@code count} weights
+     * @param weights The weights of the choices
+     * @param count The number of choices, at least 1
+     * @return The index of the rolled choice
+     */
+    public int roll( double[] weights, int count ) {
+        if ( cdf.length < count )
+            cdf = new double[ Math.max( count, cdf.length * 2 ) ];
+        double total = 0.0;
+        for ( int i = 0; i < count; i++ ) {
+            if ( weights[ i ] > 0.0 )
+                total += weights[ i ];
+            cdf[ i ] = total;
+        }
+        if ( !( total > 0.0 ) || Double.isInfinite( total ) )
+            return random.nextInt( count );
+
+        // The first choice whose cumulative weight is above the roll: zero weights never are
+        double roll = random.nextDouble() * total;
+        int low = 0;
+        int high = count - 1;
+        while ( low < high ) {
+            int mid = ( low + high ) >>> 1;
+            if ( cdf[ mid ] > roll )
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        // A roll rounded up to the total falls past the last positive weight
+        while ( !( weights[ low ] > 0.0 ) )
+            low--;
+        return low;
+    }
+
+}
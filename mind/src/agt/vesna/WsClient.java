@@ -3,15 +3,40 @@ package vesna;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
 
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.PingFrame;
+import org.java_websocket.framing.TextFrame;
 import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 
-public class WsClient extends WebSocketClient {
+/**
+ * <p>
+ * 	WebSocket client of an agent that reconnects to the body whenever the connection is lost or cannot be opened.
+ * </p>
+ * <p>
+ * 	The attempts are spaced by a {@link Backoff}, so that a squad does not hammer a body that is restarting.
+ * </p>
+ */
+public class WsClient extends WebSocketClient implements BodyLink {
+
+	/** Frame reused to send the JSON text without copying it, one for each sending thread */
+	private static final ThreadLocal<TextFrame> TEXT_FRAME = ThreadLocal.withInitial(TextFrame::new);
 
 	private WsClientMsgHandler msgHandler;
+	private Tracer tracer = Tracer.OFF;
+	private final Backoff backoff = new Backoff();
+	private final LinkMetrics metrics = new LinkMetrics();
+	/** True once the agent closed the connection for good */
+	private volatile boolean shutdown;
 
 	public WsClient(URI serverUri, Draft draft) {
 		super(serverUri, draft);
@@ -21,22 +46,126 @@ public class WsClient extends WebSocketClient {
 		super(serverURI);
 	}
 
+	/**
+	 * @param serverUri The address of the body
+	 * @param binary true to propose the binary codec to the body, falling back to JSON if it does not accept it
+	 */
+	public WsClient(URI serverUri, boolean binary) {
+		super(serverUri, binary ? binaryDraft() : new Draft_6455());
+	}
+
+	private static Draft binaryDraft() {
+		// The empty protocol accepts a body that does not select any, which means JSON
+		List<IProtocol> protocols = List.of(new Protocol(BinaryCodec.PROTOCOL), new Protocol(""));
+		return new Draft_6455(Collections.emptyList(), protocols);
+	}
+
 	public void setMsgHandler(WsClientMsgHandler handler){
 		this.msgHandler = handler;
 	}
 
+	public void setTracer(Tracer tracer){
+		this.tracer = tracer;
+	}
+
+	@Override
+	public void setBackoff(long minDelay, long maxDelay){
+		backoff.set(minDelay, maxDelay);
+	}
+
+	@Override
+	public void shutdown(){
+		shutdown = true;
+		close();
+	}
+
+	@Override
+	public LinkMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public boolean write(ByteBuffer frame, boolean binary) {
+		if (!isOpen())
+			return false;
+		try {
+			metrics.sent(frame.remaining());
+			if (binary)
+				send(frame);
+			else {
+				TextFrame text = TEXT_FRAME.get();
+				text.setPayload(frame);
+				sendFrame(text);
+			}
+			return true;
+		} catch (WebsocketNotConnectedException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean write(String text) {
+		if (!isOpen())
+			return false;
+		try {
+			metrics.sent(text);
+			send(text);
+			return true;
+		} catch (WebsocketNotConnectedException e) {
+			return false;
+		}
+	}
+
 	@Override
 	public void onOpen(ServerHandshake handshakedata) {
-		System.out.println("[WsClient] new connection opened");
+		backoff.reset();
+		if (tracer.isInfo())
+			tracer.event("new connection opened" + (isBinary() ? " (binary)" : ""));
+		if (msgHandler != null)
+			msgHandler.handleOpen();
+		metrics.start(this::ping);
+	}
+
+	private void ping(ByteBuffer payload) {
+		try {
+			PingFrame ping = new PingFrame();
+			ping.setPayload(payload);
+			sendFrame(ping);
+		} catch (WebsocketNotConnectedException e) {
+			// Closing, the pings stop with it
+		}
+	}
+
+	@Override
+	public void onWebsocketPong(WebSocket conn, Framedata f) {
+		metrics.pong(f.getPayloadData());
 	}
 
 	@Override
 	public void onClose(int code, String reason, boolean remote) {
-		System.out.println("[WsClient] Closed with exit code " + code + " additional info: " + reason);
+		metrics.stop();
+		if (tracer.isInfo())
+			tracer.event("Closed with exit code " + code + " additional info: " + reason);
+		if (msgHandler != null)
+			msgHandler.handleClose(code, reason, remote);
+		if (!shutdown)
+			scheduleReconnect();
+	}
+
+	/** Schedules the next reconnection attempt; it cannot run on the WebSocket thread that is closing */
+	private void scheduleReconnect() {
+		long delay = backoff.next();
+		if (tracer.isInfo())
+			tracer.event("reconnecting in " + delay + " ms (attempt " + backoff.getAttempts() + ")");
+		Backoff.schedule(() -> {
+			if (!shutdown)
+				reconnect();
+		}, delay);
 	}
 
 	@Override
 	public void onMessage(String message) {
+		metrics.received(message);
 		if (msgHandler != null){
 			msgHandler.handleMsg(message);
 		}
@@ -44,7 +173,15 @@ public class WsClient extends WebSocketClient {
 
 	@Override
 	public void onMessage(ByteBuffer message) {
-		System.out.println("received " + message);
+		metrics.received(message.remaining());
+		if (msgHandler != null){
+			msgHandler.handleMsg(message);
+		}
+	}
+
+	@Override
+	public boolean isBinary() {
+		return getProtocol() != null && BinaryCodec.PROTOCOL.equals(getProtocol().getProvidedProtocol());
 	}
 
 	@Override
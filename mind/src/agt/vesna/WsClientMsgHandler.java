@@ -1,7 +1,12 @@
 package vesna;
 
+import java.nio.ByteBuffer;
+
 public interface WsClientMsgHandler {
     
+    public void handleOpen();
+    public void handleClose( int code, String reason, boolean remote );
     public void handleMsg( String msg );
+    public void handleMsg( ByteBuffer msg );
     public void handleError( Exception ex );
 }
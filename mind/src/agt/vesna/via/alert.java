@@ -3,8 +3,6 @@ package vesna;
 import jason.asSemantics.*;
 import jason.asSyntax.*;
 
-import org.json.JSONObject;
-
 /**
  * Internal action for sentry agents to trigger alert sequence in Godot body.
  * 
@@ -19,17 +17,8 @@ public class alert extends DefaultInternalAction {
     @Override
     public Object execute( TransitionSystem ts, Unifier un, Term[] args ) throws Exception {
 
-        JSONObject data = new JSONObject();
-        data.put( "type", "start" );
-
-        JSONObject action = new JSONObject();
-        action.put( "sender", ts.getAgArch().getAgName() );
-        action.put( "receiver", "body" );
-        action.put( "type", "alert" );
-        action.put( "data", data );
-
         VesnaAgent ag = ( VesnaAgent ) ts.getAg();
-        ag.perform( action.toString() );
+        ag.perform( ag.action( "alert" ).field( "type", "start" ) );
 
         return true;
     }
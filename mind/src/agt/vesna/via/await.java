@@ -0,0 +1,36 @@
+package vesna;
+
+import jason.asSemantics.*;
+import jason.asSyntax.*;
+
+public class await extends DefaultInternalAction {
+
+    // await( Status )              waits for the completion of the last action of the intention
+    // await( Status, Timeout )     waits at most Timeout milliseconds, then Status is timeout
+
+    @Override
+    public boolean canBeUsedInContext() {
+        return false;
+    }
+
+    @Override
+    public boolean suspendIntention() {
+        return true;
+    }
+
+    @Override
+    public Object execute( TransitionSystem ts, Unifier un, Term[] args ) throws Exception {
+
+        if ( args.length < 1 || args.length > 2 )
+            throw new Exception( "vesna.await requires the status and an optional timeout." );
+
+        long timeout = -1;
+        if ( args.length == 2 )
+            timeout = ( long ) ( ( NumberTerm ) args[1] ).solve();
+
+        VesnaAgent ag = ( VesnaAgent ) ts.getAg();
+        ag.getActions().await( ts.getC().getSelectedIntention(), args[0], timeout );
+
+        return true;
+    }
+}
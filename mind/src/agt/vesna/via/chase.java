@@ -2,7 +2,6 @@ package vesna;
 
 import jason.asSemantics.*;
 import jason.asSyntax.*;
-import org.json.JSONObject;
 
 public class chase extends DefaultInternalAction {
 
@@ -17,21 +16,14 @@ public class chase extends DefaultInternalAction {
             patience = (int)((NumberTerm) args[0]).solve();
         }
 
-        // 3. Build the Data Payload
-        JSONObject data = new JSONObject();
-        data.put( "type", "start" );
-        data.put( "patience", patience ); // <--- Sending the value
-
-        // 4. Build the Action Wrapper
-        JSONObject action = new JSONObject();
-        action.put( "sender", ts.getAgArch().getAgName() );
-        action.put( "receiver", "body" );
-        action.put( "type", "chase" );
-        action.put( "data", data );
-
-        // 5. Send
+        // 3. Build the Action with its Data Payload
         VesnaAgent ag = ( VesnaAgent ) ts.getAg();
-        ag.perform( action.toString() );
+        ActionEncoder action = ag.action( "chase" ).coalesce( ActionOutbox.LOCOMOTION );
+        action.field( "type", "start" );
+        action.field( "patience", patience ); // <--- Sending the value
+
+        // 4. Send
+        ag.perform( action );
 
         return true;
     }
@@ -2,7 +2,6 @@ package vesna;
 
 import jason.asSemantics.*;
 import jason.asSyntax.*;
-import org.json.JSONObject;
 
 /**
  * Internal Action: vesna.investigate(Points)
@@ -18,15 +17,8 @@ public class investigate extends DefaultInternalAction {
             points = (int)((NumberTerm) args[0]).solve();
         }
 
-        JSONObject data = new JSONObject();
-        data.put("points", points);
-
-        JSONObject command = new JSONObject();
-        command.put("type", "investigate");
-        command.put("data", data);
-
         VesnaAgent agent = (VesnaAgent) ts.getAg();
-        agent.perform(command.toString());
+        agent.perform(agent.action("investigate").coalesce(ActionOutbox.LOCOMOTION).field("points", points));
         return true;
     }
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package vesna;
+
+import jason.asSemantics.*;
+import jason.asSyntax.*;
+
+import static jason.asSyntax.ASSyntax.*;
+
+public class metrics extends DefaultInternalAction {
+
+    // metrics( M )     unifies M with the metrics of the link to the body, times in milliseconds:
+    //                  [ rtt( P50, P99, Max ), pings( Sent, Received ),
+    //                    in( BytesPerSecond, FramesPerSecond ), out( BytesPerSecond, FramesPerSecond ),
+    //                    actions( Completed, MeanRtt, MaxRtt ) ]
+
+    @Override
+    public Object execute( TransitionSystem ts, Unifier un, Term[] args ) throws Exception {
+
+        if ( args.length != 1 )
+            throw new Exception( "vesna.metrics requires the term to unify with the metrics." );
+
+        VesnaAgent ag = ( VesnaAgent ) ts.getAg();
+        LinkMetrics link = ag.getMetrics();
+        ActionRegistry actions = ag.getActions();
+
+        ListTerm metrics = createList(
+            createStructure( "rtt", createNumber( link.getRttPercentile( 50 ) ), createNumber( link.getRttPercentile( 99 ) ), createNumber( link.getMaxRtt() ) ),
+            createStructure( "pings", createNumber( link.getPings() ), createNumber( link.getPongs() ) ),
+            createStructure( "in", createNumber( link.getBytesInRate() ), createNumber( link.getFramesInRate() ) ),
+            createStructure( "out", createNumber( link.getBytesOutRate() ), createNumber( link.getFramesOutRate() ) ),
+            createStructure( "actions", createNumber( actions.getCompleted() ), createNumber( actions.getMeanRtt() ), createNumber( actions.getMaxRtt() ) ) );
+
+        return un.unifies( args[0], metrics );
+    }
+}
@@ -2,7 +2,6 @@ package vesna;
 
 import jason.asSemantics.*;
 import jason.asSyntax.*;
-import org.json.JSONObject;
 
 /**
  * Internal Action: vesna.move_to(X, Y)
@@ -22,21 +21,14 @@ public class move_to extends DefaultInternalAction {
         double x = ((NumberTerm) args[0]).solve();
         double y = ((NumberTerm) args[1]).solve();
 
-        // 1. Build Data Payload
-        JSONObject data = new JSONObject();
-        data.put("pos_x", x);
-        data.put("pos_y", y);
-
-        // 2. Build Wrapper
-        JSONObject command = new JSONObject();
-        command.put("type", "move_to");
-        command.put("sender", ts.getAgArch().getAgName());
-        command.put("receiver", "body");
-        command.put("data", data);
-
-        // 3. Send
+        // 1. Build the Action with its Data Payload
         VesnaAgent agent = (VesnaAgent) ts.getAg();
-        agent.perform(command.toString());
+        ActionEncoder command = agent.action("move_to").coalesce(ActionOutbox.LOCOMOTION);
+        command.field("pos_x", x);
+        command.field("pos_y", y);
+
+        // 2. Send
+        agent.perform(command);
 
         return true;
     }
@@ -3,7 +3,6 @@ package vesna;
 import jason.JasonException; 
 import jason.asSemantics.*;
 import jason.asSyntax.*;
-import org.json.JSONObject;
 
 /**
  * Internal Action: vesna.patrol(Action)
@@ -21,17 +20,17 @@ public class patrol extends DefaultInternalAction {
         VesnaAgent agent = (VesnaAgent) ts.getAg();
         String action = args[0].toString().replace("\"", "");
 
-        // 1. Build Data
-        JSONObject data = new JSONObject();
-        data.put("action", action);
+        // 1. Build the Action (Unified Type "patrol") with its Data
+        // next and prev move relative to the current waypoint: two of them are two waypoints, never coalesced
+        ActionEncoder command = agent.action("patrol");
+        if (action.equals("next") || action.equals("prev"))
+            command.ordered(ActionOutbox.LOCOMOTION);
+        else
+            command.coalesce(ActionOutbox.LOCOMOTION);
+        command.field("action", action);
 
-        // 2. Build Wrapper (Unified Type "patrol")
-        JSONObject command = new JSONObject();
-        command.put("type", "patrol");
-        command.put("data", data);
-
-        // 3. Send
-        agent.perform(command.toString());
+        // 2. Send
+        agent.perform(command);
         return true;
     }
 }
\ No newline at end of file
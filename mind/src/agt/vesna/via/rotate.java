@@ -3,8 +3,6 @@ package vesna;
 import jason.asSemantics.*;
 import jason.asSyntax.*;
 
-import org.json.JSONObject;
-import org.json.JSONArray;
 import java.util.Set;
 
 import static jason.asSyntax.ASSyntax.*;
@@ -20,40 +18,23 @@ public class rotate extends DefaultInternalAction {
     @Override
     public Object execute( TransitionSystem ts, Unifier un, Term[] args ) throws Exception {
 
-        JSONObject data = new JSONObject();
-        JSONArray propensions = new JSONArray();
-
         VesnaAgent ag = ( VesnaAgent ) ts.getAg();
-        Unifier u = new Unifier();
-        if ( ag.believes( createLiteral( "propensions" , new VarTerm( "Ps" ) ), u ) ) {
-            ListTerm props = ( ListTerm ) u.get( "Ps" );
-            for ( Term prop : props ) {
-                propensions.put( prop.toString() );
-            }
-        }
 
         if ( args.length == 0 )
             return false;
         
+        ActionEncoder action = ag.action( "rotate" ).coalesce( ActionOutbox.GAZE );
         if ( directions.contains( args[0].toString() ) ){
-            data.put( "type", "direction" );
-            data.put( "direction", args[0].toString() );
+            action.field( "type", "direction" );
+            action.field( "direction", args[0].toString() );
         } else {
-            data.put( "type", "lookat" );
-            data.put( "target", args[0].toString() );
+            action.field( "type", "lookat" );
+            action.field( "target", args[0].toString() );
             if ( args.length == 2 )
-                data.put( "id", ( ( NumberTerm ) args[1] ).solve() );
+                action.field( "id", ( ( NumberTerm ) args[1] ).solve() );
         }
-        
-
-        JSONObject action = new JSONObject();
-        action.put( "sender", ts.getAgArch().getAgName() );
-        action.put( "receiver", "body" );
-        action.put( "type", "rotate" );
-        action.put( "data", data );
-        action.put( "propensions", propensions );
 
-        ag.perform( action.toString() );
+        ag.perform( action.withPropensions() );
 
         return true;
     }
@@ -5,8 +5,6 @@ import jason.asSyntax.*;
 
 import java.util.Set;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 import static jason.asSyntax.ASSyntax.*;
 
@@ -35,22 +33,18 @@ public class walk extends DefaultInternalAction {
         else 
             return false;
 
-        JSONObject data = new JSONObject();
-        JSONArray propensions = new JSONArray();
-
         VesnaAgent ag = ( VesnaAgent ) ts.getAg();
-        Unifier u = new Unifier();
-        if ( ag.believes( createLiteral( "propensions" , new VarTerm( "Ps" ) ), u ) ) {
-            ListTerm props = ( ListTerm ) u.get( "Ps" );
-            for ( Term prop : props ) {
-                propensions.put( prop.toString() );
-            }
-        }
 
-        data.put( "type", type );
+        // A goto replaces the previous target, a step adds to it and must not be replaced
+        ActionEncoder action = ag.action( "walk" );
+        if ( type.equals( "step" ) )
+            action.ordered( ActionOutbox.LOCOMOTION );
+        else
+            action.coalesce( ActionOutbox.LOCOMOTION );
+        action.field( "type", type );
         if ( type.equals( "step" ) ){
             if ( args.length == 2 ){
-                data.put( "length", ( ( NumberTerm ) args[1] ).solve() );
+                action.field( "length", ( ( NumberTerm ) args[1] ).solve() );
             }
         } else if ( type.equals( "goto" ) ) {
             String targetName = args[0].toString();
@@ -58,19 +52,12 @@ public class walk extends DefaultInternalAction {
             if ( args[0].isString() ) {
                 targetName = ((jason.asSyntax.StringTerm) args[0]).getString();
             }
-            data.put( "target", targetName );
+            action.field( "target", targetName );
             if ( args.length == 2 && args[1].isGround() )
-                data.put( "id", ( ( NumberTerm ) args[1] ).solve() );
+                action.field( "id", ( ( NumberTerm ) args[1] ).solve() );
         }
 
-        JSONObject action = new JSONObject();
-        action.put( "sender", ts.getAgArch().getAgName() );
-        action.put( "receiver", "body" );
-        action.put( "type", "walk" );
-        action.put( "data", data );
-        action.put( "propensions", propensions );
-
-        ag.perform( action.toString() );
+        ag.perform( action.withPropensions() );
 
         return true;
     }
@@ -0,0 +1,77 @@
+package vesna;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * 	Microbenchmark of the encoding of a {@code walk} action: the old per-action {@code JSONObject}s
+ * 	against the reusable {@link ActionEncoder}, in both formats.
+ * </p>
+ * <p>
+ * 	It prints the time and the garbage per action, measured with the allocation counter of the thread:
+ * <pre>
+ * gradle bench
+ * </pre>
+ * </p>
+ * @author Andrea Gatti
+ */
+public class ActionEncoderBench {
+
+	private static final int WARMUP = 200_000;
+	private static final int ROUNDS = 1_000_000;
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+		( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean();
+
+	/** Prevents the JIT from dropping the work */
+	private static long sink;
+
+	public static void main( String[] args ) {
+		ActionEncoder encoder = new ActionEncoder( "patrol_lazy" );
+
+		Runnable jsonObject = () -> {
+			JSONObject data = new JSONObject();
+			data.put( "type", "goto" );
+			data.put( "target", "m1_a" );
+			data.put( "id", 42.0 );
+			JSONObject action = new JSONObject();
+			action.put( "sender", "patrol_lazy" );
+			action.put( "receiver", "body" );
+			action.put( "type", "walk" );
+			action.put( "data", data );
+			action.put( "propensions", new JSONArray() );
+			// What WebSocketClient.send( String ) does before framing
+			sink += action.toString().getBytes( StandardCharsets.UTF_8 ).length;
+		};
+		Runnable encoderJson = () -> {
+			encoder.begin( "walk" ).field( "type", "goto" ).field( "target", "m1_a" ).field( "id", 42.0 ).withPropensions();
+			sink += encoder.encodeJson().remaining();
+		};
+		Runnable encoderBinary = () -> {
+			encoder.begin( "walk" ).field( "type", "goto" ).field( "target", "m1_a" ).field( "id", 42.0 ).withPropensions();
+			sink += encoder.encodeBinary().remaining();
+		};
+
+		run( "JSONObject + toString", jsonObject );
+		run( "ActionEncoder (json)  ", encoderJson );
+		run( "ActionEncoder (binary)", encoderBinary );
+	}
+
+	private static void run( String name, Runnable action ) {
+		for ( int i = 0; i < WARMUP; i++ )
+			action.run();
+		long thread = Thread.currentThread().getId();
+		long bytes = THREADS.getThreadAllocatedBytes( thread );
+		long start = System.nanoTime();
+		for ( int i = 0; i < ROUNDS; i++ )
+			action.run();
+		long time = System.nanoTime() - start;
+		bytes = THREADS.getThreadAllocatedBytes( thread ) - bytes;
+		System.out.printf( "%s  %8.1f ns/action  %8.1f B/action%n", name, ( double ) time / ROUNDS, ( double ) bytes / ROUNDS );
+	}
+
+}
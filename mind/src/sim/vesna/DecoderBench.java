@@ -0,0 +1,108 @@
+package vesna;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * 	Microbenchmark of the decoding of the body messages: the org.json tree the agent used to build for every message,
+ * 	kept here as the reference, against the streaming {@link BodyMsgDecoder}.
+ * </p>
+ * <p>
+ * 	It decodes a sight with its position, a navigation update and a batch of a physics frame with 8 sights,
+ * 	and prints the time, the throughput and the garbage per message, measured with the allocation counter of the thread:
+ * <pre>
+ * gradle decoderbench
+ * </pre>
+ * </p>
+ * @author Andrea Gatti
+ */
+public class DecoderBench {
+
+	private static final int WARMUP = 100_000;
+	private static final int ROUNDS = 500_000;
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+		( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean();
+
+	/** Prevents the JIT from dropping the work */
+	private static long sink;
+
+	public static void main( String[] args ) {
+		String sight = "{\"data\":{\"id\":1234567890,\"pos_x\":101.25,\"pos_y\":-48.5,\"sight\":\"intruder\"},"
+			+ "\"receiver\":\"patrol_lazy\",\"sender\":\"body\",\"ts\":1712345678901,\"type\":\"sight\"}";
+		String navigation = "{\"aid\":42,\"data\":{\"status\":\"reached\",\"waypoint\":\"m1_a\"},"
+			+ "\"receiver\":\"patrol_lazy\",\"sender\":\"body\",\"type\":\"navigation\"}";
+		StringBuilder batch = new StringBuilder( "{\"data\":{\"messages\":[" );
+		for ( int i = 0; i < 8; i++ )
+			batch.append( i == 0 ? "" : "," ).append( sight.replace( "1234567890", String.valueOf( 1000 + i ) ) );
+		batch.append( "]},\"receiver\":\"patrol_lazy\",\"sender\":\"body\",\"type\":\"batch\"}" );
+
+		compare( "sight         ", sight, 1 );
+		compare( "navigation    ", navigation, 1 );
+		compare( "batch of 8    ", batch.toString(), 8 );
+	}
+
+	private static void compare( String name, String msg, int messages ) {
+		List<BodyMsg> out = new ArrayList<>();
+		BodyMsgDecoder decoder = new BodyMsgDecoder();
+		run( name + "org.json tree ", messages, () -> {
+			Legacy.decode( msg, out );
+			sink += out.size();
+			out.clear();
+		} );
+		run( name + "BodyMsgDecoder", messages, () -> {
+			decoder.decode( msg, out, text -> null );
+			sink += out.size();
+			out.clear();
+		} );
+	}
+
+	private static void run( String name, int messages, Runnable decode ) {
+		for ( int i = 0; i < WARMUP; i++ )
+			decode.run();
+		long thread = Thread.currentThread().getId();
+		long bytes = THREADS.getThreadAllocatedBytes( thread );
+		long start = System.nanoTime();
+		for ( int i = 0; i < ROUNDS; i++ )
+			decode.run();
+		long time = System.nanoTime() - start;
+		bytes = THREADS.getThreadAllocatedBytes( thread ) - bytes;
+		double perMsg = ( double ) time / ROUNDS / messages;
+		System.out.printf( "%s  %8.1f ns/msg  %10.0f msg/s  %8.1f B/msg%n",
+			name, perMsg, 1e9 / perMsg, ( double ) bytes / ROUNDS / messages );
+	}
+
+	/** The decoding as it was before the streaming decoder, for the types of the benchmark */
+	private static final class Legacy {
+
+		private static void decode( String msg, List<BodyMsg> out ) {
+			JSONObject log = new JSONObject( msg );
+			if ( log.getString( "type" ).equals( "batch" ) ) {
+				JSONArray messages = log.getJSONObject( "data" ).getJSONArray( "messages" );
+				for ( int i = 0; i < messages.length(); i++ )
+					out.add( decode( messages.getJSONObject( i ) ) );
+			} else
+				out.add( decode( log ) );
+		}
+
+		private static BodyMsg decode( JSONObject log ) {
+			String type = log.getString( "type" );
+			JSONObject data = log.getJSONObject( "data" );
+			jason.asSyntax.Literal perception;
+			if ( type.equals( "sight" ) ) {
+				boolean hasPos = data.has( "pos_x" ) && data.has( "pos_y" );
+				perception = BodyMsgDecoder.sight( data.getString( "sight" ), data.getLong( "id" ),
+					hasPos, hasPos ? data.getDouble( "pos_x" ) : 0, hasPos ? data.getDouble( "pos_y" ) : 0 );
+			} else
+				perception = BodyMsgDecoder.navigation( data.getString( "status" ), data.getString( "waypoint" ) );
+			return new BodyMsg( type, log.getString( "sender" ), log.getString( "receiver" ), perception,
+				BodyMsg.Kind.BELIEF, log.optLong( "ts", 0 ), log.optLong( "aid", 0 ) );
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package vesna;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>
+ * 	Checks and times {@link WeightedDice}, the roll of the RANDOM strategy of {@link Temper}.
+ * </p>
+ * <p>
+ * 	First it rolls a few sets of weights, with zeros, negatives and a single choice, many times and
+ * 	compares the frequencies with the expected ones through a chi-square test; then it times the roll
+ * 	against the linear scan it replaced, kept here as the reference:
+ * <pre>
+ * gradle dicebench
+ * </pre>
+ * 	It exits with 1 if a distribution is off.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class DiceBench {
+
+	private static final int ROLLS = 1_000_000;
+	private static final int WARMUP = 200_000;
+	private static final int ROUNDS = 2_000_000;
+
+	/** Prevents the JIT from dropping the work */
+	private static long sink;
+
+	public static void main( String[] args ) {
+		boolean ok = true;
+		ok &= check( "proportional     ", 1.0, 2.0, 3.0, 4.0 );
+		ok &= check( "with zeros       ", 0.0, 5.0, 0.0, 1.0, 0.0 );
+		ok &= check( "with negatives   ", -2.0, 0.7, -0.1, 0.3 );
+		ok &= check( "all zeros        ", 0.0, 0.0, 0.0, 0.0 );
+		ok &= check( "all negatives    ", -1.0, -0.5, -0.2 );
+		ok &= check( "single choice    ", 0.4 );
+		ok &= check( "tiny and huge    ", 1e-9, 1e9, 1.0 );
+
+		for ( int n : new int[]{ 4, 64, 1024 } ) {
+			Random random = new Random( 42 );
+			double[] weights = new double[ n ];
+			for ( int i = 0; i < n; i++ )
+				weights[ i ] = random.nextDouble();
+			WeightedDice dice = new WeightedDice( new Random( 7 ) );
+			Legacy legacy = new Legacy( new Random( 7 ) );
+			run( String.format( "%4d choices, linear scan   ", n ), () -> sink += legacy.roll( weights, n ) );
+			run( String.format( "%4d choices, binary search ", n ), () -> sink += dice.roll( weights, n ) );
+		}
+
+		if ( !ok )
+			System.exit( 1 );
+	}
+
+	/** Rolls the weights and tests the frequencies against the expected distribution */
+	private static boolean check( String name, double... weights ) {
+		int n = weights.length;
+		double[] expected = new double[ n ];
+		double total = 0.0;
+		for ( double w : weights )
+			total += Math.max( w, 0.0 );
+		for ( int i = 0; i < n; i++ )
+			expected[ i ] = total > 0.0 ? Math.max( weights[ i ], 0.0 ) / total : 1.0 / n;
+
+		WeightedDice dice = new WeightedDice( new Random( 1234 ) );
+		long[] counts = new long[ n ];
+		for ( int r = 0; r < ROLLS; r++ )
+			counts[ dice.roll( weights, n ) ]++;
+
+		// Choices that can not be rolled must never be; the others enter the chi-square
+		boolean impossible = false;
+		double chi = 0.0;
+		int free = -1;
+		for ( int i = 0; i < n; i++ ) {
+			if ( expected[ i ] == 0.0 ) {
+				impossible |= counts[ i ] > 0;
+				continue;
+			}
+			double e = expected[ i ] * ROLLS;
+			chi += ( counts[ i ] - e ) * ( counts[ i ] - e ) / e;
+			free++;
+		}
+		boolean ok = !impossible && chi <= critical( free );
+		System.out.printf( "%s  chi2 %8.2f (df %d, limit %6.2f)  %s  %s%n",
+			name, chi, free, critical( free ), Arrays.toString( counts ), ok ? "OK" : "FAILED" );
+		return ok;
+	}
+
+	/** The chi-square value exceeded with probability 0.001, by the Wilson-Hilferty approximation */
+	private static double critical( int free ) {
+		if ( free <= 0 )
+			return 0.0;
+		double z = 3.090;
+		double a = 2.0 / ( 9.0 * free );
+		return free * Math.pow( 1.0 - a + z * Math.sqrt( a ), 3 );
+	}
+
+	private static void run( String name, Runnable roll ) {
+		for ( int i = 0; i < WARMUP; i++ )
+			roll.run();
+		long start = System.nanoTime();
+		for ( int i = 0; i < ROUNDS; i++ )
+			roll.run();
+		long time = System.nanoTime() - start;
+		System.out.printf( "%s  %8.1f ns/roll%n", name, ( double ) time / ROUNDS );
+	}
+
+	/** The roll as it was before the cumulative distribution */
+	private static final class Legacy {
+
+		private final Random random;
+
+		private Legacy( Random random ) {
+			this.random = random;
+		}
+
+		private int roll( double[] weights, int count ) {
+			double min_bound = 0.0;
+			double max_bound = 0.0;
+			for ( int i = 0; i < count; i++ ) {
+				if ( weights[ i ] < 0.0 )
+					min_bound += weights[ i ];
+				else
+					max_bound += weights[ i ];
+			}
+			if ( min_bound == max_bound )
+				return 0;
+			double roll = random.nextDouble( min_bound, max_bound );
+			int currentMin = 0;
+			for ( int i = 0; i < count; i++ ) {
+				if ( roll > currentMin && roll < weights[ i ] + currentMin )
+					return i;
+				currentMin += weights[ i ];
+			}
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package vesna;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.util.Random;
+
+import jason.asSyntax.*;
+import jason.bb.BeliefBase;
+import jason.bb.DefaultBeliefBase;
+
+/**
+ * <p>
+ * 	Soak run of {@link BeliefSlots}: a long stream of moving sights, as a body sends them while the guards watch
+ * 	a crowd, replaced in their slots the way {@link VesnaAgent} does, against the plain additions of an agent without slots.
+ * </p>
+ * <p>
+ * 	It prints the size of the belief base every {@code 10%} of the run; with the slots it must stay flat at one belief per object,
+ * 	without them it grows with every new position. The number of updates and of objects can be given as arguments:
+ * <pre>
+ * gradle slotsoak -Pupdates=1000000 -Pobjects=100
+ * </pre>
+ * 	It exits with 1 if the belief base with the slots grows past the number of objects.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class SlotSoak {
+
+	public static void main( String[] args ) {
+		long updates = args.length > 0 && !args[ 0 ].isEmpty() ? Long.parseLong( args[ 0 ] ) : 1_000_000;
+		int objects = args.length > 1 && !args[ 1 ].isEmpty() ? Integer.parseInt( args[ 1 ] ) : 100;
+
+		BeliefSlots slots = new BeliefSlots( "slots( sight(2) )" );
+		BeliefBase slotted = new DefaultBeliefBase();
+		BeliefBase plain = new DefaultBeliefBase();
+		Random random = new Random( 42 );
+		int maxSlotted = 0;
+
+		System.out.printf( "%d updates of %d moving objects%n", updates, objects );
+		for ( long u = 1; u <= updates; u++ ) {
+			int id = random.nextInt( objects );
+			Literal sight = createLiteral( "sight", createAtom( id % 2 == 0 ? "intruder" : "ally" ), createNumber( id ),
+				createLiteral( "pos", createNumber( random.nextInt( 1000 ) ), createNumber( random.nextInt( 1000 ) ) ) );
+			believe( slots, slotted, sight );
+			plain.add( sight );
+			maxSlotted = Math.max( maxSlotted, slotted.size() );
+			if ( u % Math.max( updates / 10, 1 ) == 0 )
+				System.out.printf( "%10d updates  with slots %8d beliefs, %6d slots  without slots %8d beliefs%n",
+					u, slotted.size(), slots.size(), plain.size() );
+		}
+
+		boolean ok = maxSlotted <= objects && slots.size() <= objects;
+		System.out.printf( "max %d beliefs with slots for %d objects: %s%n", maxSlotted, objects, ok ? "OK" : "FAILED" );
+		if ( !ok )
+			System.exit( 1 );
+	}
+
+	/** The replacement of a slotted belief as done by {@code VesnaAgent.believe}, without the events of the agent */
+	private static void believe( BeliefSlots slots, BeliefBase bb, Literal belief ) {
+		Literal current = bb.contains( belief );
+		if ( current != null ) {
+			slots.put( current );
+			return;
+		}
+		Literal previous = slots.put( belief );
+		if ( previous != null )
+			bb.remove( previous );
+		bb.add( belief );
+	}
+
+}
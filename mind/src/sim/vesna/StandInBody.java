@@ -0,0 +1,462 @@
+package vesna;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * <p>
+ * 	A headless body that stands in for Godot, to run and load test a mind without the game.
+ * </p>
+ * <p>
+ * 	It accepts both the JSON and the binary codec, like <code>vesnaManager.gd</code>,
+ * 	and sends the same messages: sights of a moving player, allies, lost targets, finished investigations
+ * 	and the completions of the actions, stamped with their {@code aid} like the real body does.
+ * 	What it sends and how often is read from a script, one rule for each line:
+ * <pre>
+ * # every TYPE MILLISECONDS, TYPE is sight, allies, event, investigation or navigation
+ * every sight 100
+ * every allies 5000
+ * # ack ACTION MIN_DELAY [ MAX_DELAY ], or ack ACTION off; ACTION is walk, move_to, patrol, chase, investigate or alert
+ * ack walk 300 1500
+ * # the seed of the delays, the period of the report in milliseconds, and no printing of every action
+ * seed 42
+ * report 10000
+ * quiet
+ * </pre>
+ * 	Without a script it sends a sight every 100 ms and completes the actions as {@link #DEFAULT_SCRIPT} does.
+ * 	A new movement cancels the completion of the previous one, which the body would never reach.
+ * </p>
+ * <p>
+ * 	Periodically it reports the messages sent, the actions received and the reaction latency, i.e. the time
+ * 	between the first sight an agent did not react to yet and its next action, over all the ports it serves.
+ * </p>
+ * <p>
+ * 	Like <code>vesnaManager.gd</code> in routing mode it can serve several agents on a single connection
+ * 	(see {@link BodyHub}): given the names of some agents on the command line, each of them gets its own messages,
+ * 	addressed to it in {@code receiver}, and so does any other agent once it sends an action.
+ * 	Without names the messages are addressed to {@code vesna}, i.e. to any agent on the connection.
+ * 	A range of ports serves an agent for each port, as in <code>vesna.jcm</code>:
+ * </p>
+ * <pre>
+ * gradle standin -Pport=9081
+ * gradle standin -Pport=9080 -Pagents=sentry1,sentry2,patrol_lazy
+ * gradle standin -Pport=9081-9100 -Pscript=standin-load.txt
+ * </pre>
+ * @author Andrea Gatti
+ */
+public class StandInBody extends WebSocketServer {
+
+	/** The rules used without a script */
+	public static final String DEFAULT_SCRIPT = String.join( "\n",
+		"every sight 100",
+		"ack walk 300 1500",
+		"ack move_to 500 2000",
+		"ack patrol 1000 3000",
+		"ack chase 2000 6000",
+		"ack investigate 3000 8000",
+		"ack alert 1000 2000",
+		"report 10000" );
+
+	/** The actions that move the body; a new one supersedes the previous one */
+	private static final List<String> LOCOMOTION = List.of( "walk", "move_to", "patrol", "chase", "investigate" );
+
+	/** The thread sending the messages of all the ports */
+	private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor( r -> {
+		Thread t = new Thread( r, "standin" );
+		t.setDaemon( true );
+		return t;
+	} );
+
+	/** The traffic of all the ports */
+	private static final AtomicLong sent = new AtomicLong(), received = new AtomicLong(), acked = new AtomicLong();
+	/** Reaction latencies of the last report, in nanoseconds */
+	private static final long[] reactions = new long[ 1 << 16 ];
+	private static int reacted;
+
+	private final Script script;
+	/** The agents served by every connection, empty to address the messages to any agent */
+	private final List<String> agents;
+	/** The agents of each connection */
+	private final Map<WebSocket, Map<String, Guard>> guards = new ConcurrentHashMap<>();
+	private final List<ScheduledFuture<?>> schedules = new ArrayList<>();
+
+	/** The state of an agent of a connection; its position is only touched by the ticker */
+	private static final class Guard {
+		private final String name;
+		private double x, y;
+		private int waypoint;
+		/** When the first sight not reacted to was sent, 0 if none */
+		private volatile long unansweredSight;
+		/** The pending completion of each kind of action */
+		private final Map<String, ScheduledFuture<?>> acks = new ConcurrentHashMap<>();
+
+		private Guard( String name ) {
+			this.name = name;
+		}
+	}
+
+	/** The rules of a script */
+	public static final class Script {
+		private final Map<String, Long> every = new ConcurrentHashMap<>();
+		/** The minimum and maximum delay of the completion of each action */
+		private final Map<String, long[]> acks = new ConcurrentHashMap<>();
+		private Random random = new Random();
+		private long report;
+		private boolean quiet;
+
+		/** Parses a script
+		 * @param text The rules, one for each line
+		 */
+		public Script( String text ) throws IllegalArgumentException {
+			for ( String line : text.split( "\n" ) ) {
+				String[] words = line.replaceAll( "#.*", "" ).trim().split( "\\s+" );
+				try {
+					switch ( words[ 0 ] ) {
+						case "":
+							break;
+						case "every":
+							every.put( words[ 1 ], Long.parseLong( words[ 2 ] ) );
+							break;
+						case "ack":
+							if ( words[ 2 ].equals( "off" ) )
+								acks.remove( words[ 1 ] );
+							else {
+								long min = Long.parseLong( words[ 2 ] );
+								long max = words.length > 3 ? Long.parseLong( words[ 3 ] ) : min;
+								acks.put( words[ 1 ], new long[]{ min, Math.max( min, max ) } );
+							}
+							break;
+						case "seed":
+							random = new Random( Long.parseLong( words[ 1 ] ) );
+							break;
+						case "report":
+							report = Long.parseLong( words[ 1 ] );
+							break;
+						case "quiet":
+							quiet = true;
+							break;
+						default:
+							throw new IllegalArgumentException( "Unknown rule: " + line );
+					}
+				} catch ( NumberFormatException | IndexOutOfBoundsException e ) {
+					throw new IllegalArgumentException( "Bad rule: " + line );
+				}
+			}
+		}
+
+		private synchronized long delay( String action ) {
+			long[] range = acks.get( action );
+			return range[ 0 ] + ( range[ 1 ] > range[ 0 ] ? random.nextInt( ( int ) ( range[ 1 ] - range[ 0 ] + 1 ) ) : 0 );
+		}
+	}
+
+	public StandInBody( int port ) {
+		this( port, List.of() );
+	}
+
+	public StandInBody( int port, List<String> agents ) {
+		this( port, agents, new Script( DEFAULT_SCRIPT ) );
+	}
+
+	public StandInBody( int port, List<String> agents, Script script ) {
+		super( new InetSocketAddress( port ), List.<Draft>of( new Draft_6455(
+			List.<IExtension>of(),
+			List.<IProtocol>of( new Protocol( BinaryCodec.PROTOCOL ), new Protocol( "" ) ) ) ) );
+		this.agents = agents;
+		this.script = script;
+	}
+
+	@Override
+	public void onStart() {
+		System.out.println( "[StandIn] Listening on port " + getPort() );
+		for ( Map.Entry<String, Long> rule : script.every.entrySet() ) {
+			String type = rule.getKey();
+			schedules.add( ticker.scheduleAtFixedRate( () -> tick( type ), rule.getValue(), rule.getValue(), TimeUnit.MILLISECONDS ) );
+		}
+	}
+
+	@Override
+	public void stop( int timeout ) throws InterruptedException {
+		for ( ScheduledFuture<?> schedule : schedules )
+			schedule.cancel( false );
+		super.stop( timeout );
+	}
+
+	@Override
+	public void onOpen( WebSocket conn, ClientHandshake handshake ) {
+		System.out.println( "[StandIn] Mind connected (" + ( isBinary( conn ) ? "binary" : "json" ) + ")" );
+		Map<String, Guard> served = new ConcurrentHashMap<>();
+		for ( String agent : agents )
+			served.put( agent, new Guard( agent ) );
+		if ( agents.isEmpty() )
+			served.put( "vesna", new Guard( "vesna" ) );
+		guards.put( conn, served );
+	}
+
+	@Override
+	public void onClose( WebSocket conn, int code, String reason, boolean remote ) {
+		System.out.println( "[StandIn] Mind disconnected: " + reason );
+		Map<String, Guard> served = guards.remove( conn );
+		if ( served != null )
+			for ( Guard guard : served.values() )
+				guard.acks.values().forEach( ack -> ack.cancel( false ) );
+	}
+
+	@Override
+	public void onMessage( WebSocket conn, String message ) {
+		if ( !script.quiet )
+			System.out.println( "[StandIn] " + message );
+		received( conn, new JSONObject( message ) );
+	}
+
+	@Override
+	public void onMessage( WebSocket conn, ByteBuffer message ) {
+		try {
+			JSONObject action = BinaryCodec.toJson( message );
+			if ( !script.quiet )
+				System.out.println( "[StandIn] " + action );
+			received( conn, action );
+		} catch ( IllegalArgumentException iae ) {
+			System.out.println( "[StandIn] Bad binary frame: " + iae.getMessage() );
+		}
+	}
+
+	/** Records the reaction to the sights and schedules the completion of an action */
+	private void received( WebSocket conn, JSONObject action ) {
+		Map<String, Guard> served = guards.get( conn );
+		if ( served == null )
+			return;
+		received.incrementAndGet();
+		String sender = action.optString( "sender", null );
+		Guard guard;
+		if ( agents.isEmpty() )
+			guard = served.get( "vesna" );
+		else if ( sender != null )
+			// When routing, the sender of an action gets its own messages too
+			guard = served.computeIfAbsent( sender, Guard::new );
+		else
+			return;
+
+		long sight = guard.unansweredSight;
+		if ( sight != 0 ) {
+			guard.unansweredSight = 0;
+			reaction( System.nanoTime() - sight );
+		}
+
+		String type = action.optString( "type" );
+		if ( !script.acks.containsKey( type ) )
+			return;
+		String kind = LOCOMOTION.contains( type ) ? "locomotion" : type;
+		long aid = action.optLong( "aid", -1 );
+		JSONObject data = action.optJSONObject( "data" );
+		ScheduledFuture<?> previous = guard.acks.put( kind,
+			ticker.schedule( () -> ack( conn, guard, kind, type, data, aid ), script.delay( type ), TimeUnit.MILLISECONDS ) );
+		if ( previous != null )
+			previous.cancel( false );
+	}
+
+	/** Sends the completion of an action, as the body does once it is done */
+	private void ack( WebSocket conn, Guard guard, String kind, String type, JSONObject data, long aid ) {
+		guard.acks.remove( kind );
+		JSONObject msg;
+		boolean echoed = true;
+		switch ( type ) {
+			case "walk":
+				String target = data == null ? "coords" : data.optString( "target", "coords" );
+				msg = message( guard, "navigation", new JSONObject().put( "status", "reached" ).put( "waypoint", target ) );
+				break;
+			case "move_to":
+				msg = message( guard, "navigation", new JSONObject().put( "status", "reached_target" ).put( "waypoint", "coords" ) );
+				break;
+			case "patrol":
+				msg = message( guard, "navigation", new JSONObject().put( "status", "reached" ).put( "waypoint", String.valueOf( guard.waypoint++ ) ) );
+				break;
+			case "chase":
+				// The body reports a lost target without the id of the chase
+				msg = lostTarget( guard );
+				echoed = false;
+				break;
+			case "investigate":
+				msg = investigation( guard );
+				echoed = false;
+				break;
+			default:
+				msg = message( guard, "signal", new JSONObject().put( "type", type ).put( "status", "completed" ).put( "reason", type + " finished" ) );
+		}
+		if ( echoed && aid >= 0 )
+			msg.put( "aid", aid );
+		acked.incrementAndGet();
+		send( conn, msg );
+	}
+
+	@Override
+	public void onError( WebSocket conn, Exception ex ) {
+		ex.printStackTrace();
+	}
+
+	/****************************************/
+	/* MESSAGES                             */
+	/****************************************/
+
+	/** Sends a message of a type to every agent */
+	private void tick( String type ) {
+		for ( Map.Entry<WebSocket, Map<String, Guard>> conn : guards.entrySet() )
+			for ( Guard guard : conn.getValue().values() ) {
+				JSONObject msg;
+				switch ( type ) {
+					case "sight":
+						guard.x += 1.5;
+						guard.y -= 0.5;
+						msg = message( guard, "sight", new JSONObject()
+							.put( "sight", "player" )
+							.put( "id", 1 )
+							.put( "pos_x", guard.x )
+							.put( "pos_y", guard.y ) );
+						if ( guard.unansweredSight == 0 )
+							guard.unansweredSight = System.nanoTime();
+						break;
+					case "allies":
+						JSONArray allies = new JSONArray();
+						for ( String other : conn.getValue().keySet() )
+							if ( !other.equals( guard.name ) )
+								allies.put( other );
+						msg = message( guard, "allies", new JSONObject().put( "allies", allies ) );
+						break;
+					case "event":
+						msg = lostTarget( guard );
+						break;
+					case "investigation":
+						msg = investigation( guard );
+						break;
+					case "navigation":
+						msg = message( guard, "navigation", new JSONObject().put( "status", "reached" ).put( "waypoint", String.valueOf( guard.waypoint++ ) ) );
+						break;
+					default:
+						System.out.println( "[StandIn] Unknown message type: " + type );
+						return;
+				}
+				send( conn.getKey(), msg );
+			}
+	}
+
+	private static JSONObject message( Guard guard, String type, JSONObject data ) {
+		return new JSONObject()
+			.put( "type", type )
+			.put( "sender", "body" )
+			.put( "receiver", guard.name )
+			.put( "ts", System.currentTimeMillis() )
+			.put( "data", data );
+	}
+
+	private static JSONObject lostTarget( Guard guard ) {
+		return message( guard, "event", new JSONObject()
+			.put( "event", "target_lost" )
+			.put( "pos_x", guard.x )
+			.put( "pos_y", guard.y )
+			.put( "reason", "out_of_sight" ) );
+	}
+
+	private static JSONObject investigation( Guard guard ) {
+		return message( guard, "signal", new JSONObject()
+			.put( "type", "investigation" )
+			.put( "status", "complete" )
+			.put( "reason", "points_finished" ) );
+	}
+
+	private void send( WebSocket conn, JSONObject msg ) {
+		if ( !conn.isOpen() )
+			return;
+		ByteBuffer frame = isBinary( conn ) ? BinaryCodec.encode( msg ) : null;
+		if ( frame != null )
+			conn.send( frame );
+		else
+			conn.send( msg.toString() );
+		sent.incrementAndGet();
+	}
+
+	private static boolean isBinary( WebSocket conn ) {
+		Draft draft = conn.getDraft();
+		return draft instanceof Draft_6455
+			&& BinaryCodec.PROTOCOL.equals( ( ( Draft_6455 ) draft ).getProtocol().getProvidedProtocol() );
+	}
+
+	/****************************************/
+	/* REPORT                               */
+	/****************************************/
+
+	private static synchronized void reaction( long nanos ) {
+		reactions[ reacted++ & ( reactions.length - 1 ) ] = nanos;
+	}
+
+	/** Prints the traffic since the last report */
+	private static synchronized void report( long period ) {
+		long out = sent.getAndSet( 0 ), in = received.getAndSet( 0 ), acks = acked.getAndSet( 0 );
+		if ( out == 0 && in == 0 )
+			return;
+		double seconds = period / 1000.0;
+		StringBuilder line = new StringBuilder( String.format( "[StandIn] %.0f msg/s sent, %.0f actions/s received, %.0f completions/s",
+			out / seconds, in / seconds, acks / seconds ) );
+		int n = Math.min( reacted, reactions.length );
+		if ( n > 0 ) {
+			long[] sorted = Arrays.copyOf( reactions, n );
+			Arrays.sort( sorted );
+			line.append( String.format( ", reaction p50 %.1f ms p99 %.1f ms (%d)", sorted[ n / 2 ] / 1e6, sorted[ n * 99 / 100 ] / 1e6, reacted ) );
+		}
+		reacted = 0;
+		System.out.println( line );
+	}
+
+	/** Parses the ports to serve
+	 * @param spec A port, a range {@code 9081-9100} or a list {@code 9081,9085}
+	 */
+	private static List<Integer> ports( String spec ) {
+		List<Integer> ports = new ArrayList<>();
+		for ( String part : spec.split( "," ) ) {
+			String[] range = part.trim().split( "-" );
+			int from = Integer.parseInt( range[ 0 ] );
+			int to = range.length > 1 ? Integer.parseInt( range[ 1 ] ) : from;
+			for ( int port = from; port <= to; port++ )
+				ports.add( port );
+		}
+		return ports;
+	}
+
+	public static void main( String[] args ) throws IOException {
+		List<Integer> ports = ports( args.length > 0 ? args[ 0 ] : "9081" );
+		List<String> agents = args.length > 1 && !args[ 1 ].isEmpty() ? Arrays.asList( args[ 1 ].split( "," ) ) : List.of();
+		Script script = new Script( args.length > 2 && !args[ 2 ].isEmpty()
+			? new String( Files.readAllBytes( Paths.get( args[ 2 ] ) ) )
+			: DEFAULT_SCRIPT );
+		for ( int port : ports )
+			new StandInBody( port, agents, script ).start();
+		if ( script.report > 0 )
+			ticker.scheduleAtFixedRate( () -> report( script.report ), script.report, script.report, TimeUnit.MILLISECONDS );
+		// The ticker is a daemon, the servers keep the JVM alive
+	}
+
+}
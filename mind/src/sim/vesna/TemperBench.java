@@ -0,0 +1,146 @@
+package vesna;
+
+import static jason.asSyntax.ASSyntax.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import jason.asSyntax.*;
+
+/**
+ * <p>
+ * 	Microbenchmark of {@link Temper#select(List, Function)}: the plan annotations compiled once
+ * 	against the old reading of the annotations at every selection, kept here as the reference.
+ * </p>
+ * <p>
+ * 	It runs a realistic library, the choices of {@code patrol.asl} for an agent with two traits,
+ * 	and a large one, 200 plans with 8 of the 32 traits of the agent each,
+ * 	and prints the time and the garbage per selection. The plans have no effects, so the mood never changes
+ * 	and the compiled most similar selection reuses its cached decision:
+ * <pre>
+ * gradle temperbench
+ * </pre>
+ * </p>
+ * @author Andrea Gatti
+ */
+public class TemperBench {
+
+	private static final int WARMUP = 20_000;
+	private static final int ROUNDS = 200_000;
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+		( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean();
+
+	/** Prevents the JIT from dropping the work */
+	private static long sink;
+
+	public static void main( String[] args ) throws Exception {
+		// The choices of patrol.asl, with the fallback plan without temper
+		List<Pred> patrol = labels(
+			"lazy_rest[temper([laziness(0.8)])]",
+			"active_rest[temper([laziness(0.2)])]",
+			"default_rest",
+			"go_next[temper([aggressiveness(0.1)])]",
+			"go_prev_low[temper([aggressiveness(0.3)])]",
+			"go_prev_high[temper([aggressiveness(0.9)])]" );
+		String patrolTemper = "temper(laziness(0.9), aggressiveness(0.2))";
+
+		Random random = new Random( 42 );
+		StringBuilder large = new StringBuilder( "temper(" );
+		for ( int t = 0; t < 32; t++ )
+			large.append( t == 0 ? "" : ", " ).append( "t" ).append( t ).append( String.format( "(%.2f)", random.nextDouble() ) );
+		large.append( ")" );
+		List<String> plans = new ArrayList<>();
+		for ( int p = 0; p < 200; p++ ) {
+			StringBuilder plan = new StringBuilder( "p" + p + "[temper([" );
+			for ( int t = 0; t < 8; t++ )
+				plan.append( t == 0 ? "" : "," ).append( "t" ).append( random.nextInt( 40 ) ).append( String.format( "(%.2f)", random.nextDouble() ) );
+			plans.add( plan.append( "])]" ).toString() );
+		}
+		List<Pred> library = labels( plans.toArray( new String[ 0 ] ) );
+
+		for ( String strategy : new String[]{ "most_similar", "random" } ) {
+			compare( "patrol.asl, " + strategy, patrolTemper, strategy, patrol );
+			compare( "200 plans,  " + strategy, large.toString(), strategy, library );
+		}
+	}
+
+	private static List<Pred> labels( String... labels ) throws Exception {
+		List<Pred> preds = new ArrayList<>();
+		for ( String label : labels )
+			preds.add( ( Pred ) parseLiteral( label ) );
+		return preds;
+	}
+
+	private static void compare( String name, String temperStr, String strategy, List<Pred> choices ) throws Exception {
+		Temper temper = new Temper( temperStr, strategy );
+		for ( Pred label : choices )
+			temper.of( label );
+		Legacy legacy = new Legacy( temperStr, strategy.equals( "random" ) );
+		run( name + ", annotations read at every select", () -> sink += legacy.select( choices ) );
+		run( name + ", compiled annotations            ", () -> sink += temper.select( choices, Function.identity() ) );
+	}
+
+	private interface Selection {
+		void run() throws Exception;
+	}
+
+	private static void run( String name, Selection selection ) throws Exception {
+		for ( int i = 0; i < WARMUP; i++ )
+			selection.run();
+		long thread = Thread.currentThread().getId();
+		long bytes = THREADS.getThreadAllocatedBytes( thread );
+		long start = System.nanoTime();
+		for ( int i = 0; i < ROUNDS; i++ )
+			selection.run();
+		long time = System.nanoTime() - start;
+		bytes = THREADS.getThreadAllocatedBytes( thread ) - bytes;
+		System.out.printf( "%s  %9.1f ns/select  %8.1f B/select%n", name, ( double ) time / ROUNDS, ( double ) bytes / ROUNDS );
+	}
+
+	/** The weighting of the choices as it was before the compilation of the annotations */
+	private static final class Legacy {
+
+		private final Map<String, Double> personality = new HashMap<>();
+		private final Map<String, Double> mood = new HashMap<>();
+		private final boolean random;
+
+		private Legacy( String temper, boolean random ) throws Exception {
+			for ( Term term : parseLiteral( temper ).getTerms() ) {
+				Literal trait = ( Literal ) term;
+				personality.put( trait.getFunctor(), ( ( NumberTerm ) trait.getTerm( 0 ) ).solve() );
+			}
+			this.random = random;
+		}
+
+		private int select( List<Pred> choices ) throws Exception {
+			List<Double> weights = new ArrayList<>();
+			for ( Pred label : choices ) {
+				double choiceWeight = 0;
+				Literal temperAnnot = label.getAnnot( "temper" );
+				if ( temperAnnot == null )
+					continue;
+				for ( Term traitTerm : ( ListTerm ) temperAnnot.getTerm( 0 ) ) {
+					Atom trait = ( Atom ) traitTerm;
+					if ( !mood.keySet().contains( trait.getFunctor() ) && !personality.keySet().contains( trait.getFunctor() ) )
+						continue;
+					double traitTemper = mood.keySet().contains( trait.getFunctor() ) ? mood.get( trait.getFunctor() ) : personality.get( trait.getFunctor() );
+					double traitValue = ( ( NumberTerm ) trait.getTerm( 0 ) ).solve();
+					choiceWeight += random ? traitTemper * traitValue : Math.abs( traitTemper - traitValue );
+				}
+				weights.add( choiceWeight );
+			}
+			int best = 0;
+			for ( int i = 1; i < weights.size(); i++ )
+				if ( weights.get( i ) < weights.get( best ) )
+					best = i;
+			return best;
+		}
+	}
+
+}
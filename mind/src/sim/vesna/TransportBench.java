@@ -0,0 +1,171 @@
+package vesna;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+/**
+ * <p>
+ * 	Benchmark of the transports of the body connections (see {@link BodyLink}):
+ * 	a {@link WsClient} for each body against the {@link NioBodyLink}s sharing one event loop.
+ * </p>
+ * <p>
+ * 	For 10, 100 and 500 bodies it connects that many links to an echo server in the same JVM
+ * 	and prints the threads and the resident memory added by the links, and the round-trip time
+ * 	of a message sent by every body at once:
+ * <pre>
+ * gradle transportbench
+ * gradle transportbench -Ptransport=nio -Pbodies=500
+ * </pre>
+ * 	The memory of a run includes the garbage left by the previous ones; run one configuration at a time
+ * 	for clean numbers.
+ * </p>
+ * @author Andrea Gatti
+ */
+public class TransportBench {
+
+	private static final int ROUNDS = 50;
+
+	/** Echoes every message back */
+	private static final class EchoServer extends WebSocketServer {
+
+		private final CountDownLatch started = new CountDownLatch( 1 );
+
+		private EchoServer() {
+			super( new InetSocketAddress( "localhost", 0 ) );
+			setReuseAddr( true );
+		}
+
+		@Override
+		public void onOpen( WebSocket conn, ClientHandshake handshake ) {}
+
+		@Override
+		public void onClose( WebSocket conn, int code, String reason, boolean remote ) {}
+
+		@Override
+		public void onMessage( WebSocket conn, String message ) {
+			conn.send( message );
+		}
+
+		@Override
+		public void onError( WebSocket conn, Exception ex ) {}
+
+		@Override
+		public void onStart() {
+			started.countDown();
+		}
+	}
+
+	/** Records the round trip of the echoed messages, which carry their send time */
+	private static final class Echo implements WsClientMsgHandler {
+
+		private final long[] rtts;
+		private volatile CountDownLatch round;
+		private int n;
+
+		private Echo( long[] rtts ) {
+			this.rtts = rtts;
+		}
+
+		@Override
+		public void handleOpen() {}
+
+		@Override
+		public void handleClose( int code, String reason, boolean remote ) {}
+
+		@Override
+		public void handleMsg( String msg ) {
+			rtts[ n++ ] = System.nanoTime() - Long.parseLong( msg );
+			round.countDown();
+		}
+
+		@Override
+		public void handleMsg( ByteBuffer msg ) {}
+
+		@Override
+		public void handleError( Exception ex ) {}
+	}
+
+	public static void main( String[] args ) throws Exception {
+		List<String> transports = args.length > 0 && !args[ 0 ].isEmpty() ? List.of( args[ 0 ].split( "," ) ) : List.of( "websocket", "nio" );
+		int[] bodies = args.length > 1 && !args[ 1 ].isEmpty()
+			? Arrays.stream( args[ 1 ].split( "," ) ).mapToInt( Integer::parseInt ).toArray()
+			: new int[]{ 10, 100, 500 };
+
+		EchoServer server = new EchoServer();
+		server.start();
+		server.started.await();
+		URI address = new URI( "ws://localhost:" + server.getPort() );
+
+		System.out.printf( "%-10s %6s %8s %10s %9s %9s %9s%n", "transport", "bodies", "threads", "rss (MB)", "p50 (ms)", "p99 (ms)", "max (ms)" );
+		for ( String transport : transports )
+			for ( int n : bodies )
+				run( address, "nio".equals( transport ), n );
+		server.stop();
+	}
+
+	private static void run( URI address, boolean nio, int bodies ) throws Exception {
+		System.gc();
+		Thread.sleep( 500 );
+		int threads = Thread.activeCount();
+		long rss = rss();
+
+		long[] rtts = new long[ bodies * ROUNDS ];
+		List<BodyLink> links = new ArrayList<>();
+		List<Echo> echoes = new ArrayList<>();
+		for ( int i = 0; i < bodies; i++ ) {
+			BodyLink link = BodyLink.create( address, false, nio );
+			Echo echo = new Echo( new long[ ROUNDS ] );
+			link.setMsgHandler( echo );
+			if ( !link.connectBlocking() )
+				throw new IllegalStateException( "Cannot connect body " + i );
+			links.add( link );
+			echoes.add( echo );
+		}
+		int addedThreads = Thread.activeCount() - threads;
+		double addedRss = ( rss() - rss ) / 1024.0;
+
+		for ( int r = 0; r < ROUNDS; r++ ) {
+			CountDownLatch round = new CountDownLatch( bodies );
+			for ( int i = 0; i < bodies; i++ ) {
+				echoes.get( i ).round = round;
+				links.get( i ).write( Long.toString( System.nanoTime() ) );
+			}
+			if ( !round.await( 30, TimeUnit.SECONDS ) )
+				throw new IllegalStateException( "Round " + r + " timed out" );
+		}
+		for ( int i = 0; i < bodies; i++ )
+			System.arraycopy( echoes.get( i ).rtts, 0, rtts, i * ROUNDS, ROUNDS );
+		Arrays.sort( rtts );
+
+		System.out.printf( "%-10s %6d %8d %10.1f %9.3f %9.3f %9.3f%n", nio ? "nio" : "websocket", bodies, addedThreads, addedRss,
+			rtts[ rtts.length / 2 ] / 1e6, rtts[ rtts.length * 99 / 100 ] / 1e6, rtts[ rtts.length - 1 ] / 1e6 );
+
+		for ( BodyLink link : links )
+			link.shutdown();
+	}
+
+	/** @return The resident memory of the JVM in kB, from {@code /proc}; 0 where it is not available */
+	private static long rss() {
+		try {
+			for ( String line : Files.readAllLines( Paths.get( "/proc/self/status" ) ) )
+				if ( line.startsWith( "VmRSS:" ) )
+					return Long.parseLong( line.replaceAll( "[^0-9]", "" ) );
+		} catch ( Exception e ) {
+			// Not Linux
+		}
+		return 0;
+	}
+
+}